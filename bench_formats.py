@@ -0,0 +1,43 @@
+"""
+Compares the size and client-side decode time of the server's output formats:
+JSON text (the default) and Smile, the binary encoding of the same objects,
+each with and without the server's deflate compression, and in the rows and
+columnar layouts.  Decoding is what the client pays per document on top of the
+transport, with json.loads (ujson if it's installed) for JSON and pysmile for
+Smile.
+
+USAGE
+python bench_formats.py [mode] [repeats] [files...]
+
+e.g.
+python bench_formats.py pos 2000 examples/lee_example.txt > bench_output.txt
+
+Note that you'll have to edit it to specify the jar paths, as in
+proc_text_files.py.  Needs the pysmile module.
+"""
+
+import sys, time, zlib
+from stanford_corenlp_pywrapper import CoreNLP, decode_result, split_columns
+
+mode = sys.argv[1] if len(sys.argv) > 1 else "pos"
+repeats = int(sys.argv[2]) if len(sys.argv) > 2 else 1000
+filenames = sys.argv[3:] or ["examples/lee_example.txt"]
+texts = [open(f).read().decode('utf8', 'replace') for f in filenames]
+
+proc = CoreNLP(mode, comm_mode='SOCKET')  # need to override corenlp_jars
+
+print "file\tformat\tlayout\tbytes\tdeflated_bytes\tdecode_us"
+for filename, text in zip(filenames, texts):
+    rows = proc.parse_doc(text)
+    for output_format in ['json', 'smile']:
+        for layout in ['rows', 'columnar']:
+            data = proc.parse_doc(text, raw=True, output_format=output_format, layout=layout)
+            ret = decode_result(data)
+            assert (split_columns(ret) if layout == 'columnar' else ret) == rows
+            t0 = time.time()
+            for i in range(repeats):
+                decode_result(data)
+            decode_us = 1e6 * (time.time() - t0) / repeats
+            print "%s\t%s\t%s\t%d\t%d\t%.1f" % (filename, output_format, layout,
+                    len(data), len(zlib.compress(data, 1)), decode_us)
+proc.cleanup()
@@ -0,0 +1,42 @@
+"""
+Compares per-document round-trip latency of the transports between the
+python client and the java server: named pipe (the default), TCP socket, and
+Unix domain socket.  Uses the 'ssplit' mode and short documents, so the
+numbers are dominated by communication overhead rather than annotation.
+
+USAGE
+python bench_transports.py [num_docs] [files...]
+
+e.g.
+python bench_transports.py 2000 examples/*.txt > bench_output.txt
+
+Note that you'll have to edit it to specify the jar paths, as in
+proc_text_files.py.  UNIX mode needs Java 16 or later.
+"""
+
+import sys, time
+from stanford_corenlp_pywrapper import CoreNLP
+
+num_docs = int(sys.argv[1]) if len(sys.argv) > 1 else 1000
+filenames = sys.argv[2:] or ["examples/lee_example.txt", "examples/csamp.txt"]
+texts = [open(f).read().decode('utf8', 'replace') for f in filenames]
+
+def percentile(sorted_values, p):
+    return sorted_values[min(len(sorted_values)-1, int(p * len(sorted_values)))]
+
+print "mode\tdocs\tmean_ms\tp50_ms\tp99_ms"
+for comm_mode in ['PIPE', 'SOCKET', 'UNIX']:
+    proc = CoreNLP("ssplit", comm_mode=comm_mode)  # need to override corenlp_jars
+    # warm up the JIT before timing
+    for i in range(200):
+        proc.parse_doc(texts[i % len(texts)])
+    latencies = []
+    for i in range(num_docs):
+        t0 = time.time()
+        proc.parse_doc(texts[i % len(texts)])
+        latencies.append(1000 * (time.time() - t0))
+    proc.cleanup()
+    latencies.sort()
+    print "%s\t%d\t%.3f\t%.3f\t%.3f" % (comm_mode, num_docs,
+            sum(latencies) / len(latencies),
+            percentile(latencies, 0.50), percentile(latencies, 0.99))
@@ -3,12 +3,17 @@ set -eux
 cd $(dirname $0)/stanford_corenlp_pywrapper
 
 jarfile=lib/corenlpwrapper.jar
-rm -rf _build $jarfile
+rm -rf _build
 mkdir _build
+# corenlp/NamedPipeEcho.class has no source in javasrc; keep the one from the jar being replaced
+if [[ -f $jarfile ]]; then
+    (cd _build && unzip -q ../$jarfile corenlp/NamedPipeEcho.class || true)
+fi
+rm -f $jarfile
 
 CORENLP_JAR=/home/sw/corenlp/stanford-corenlp-full-2015-04-20/stanford-corenlp-3.5.2.jar
 
-javac -source 7 -target 7 -d _build -cp "$(print lib/*.jar | tr ' ' ':')":$CORENLP_JAR javasrc/**/*.java
+javac -source 8 -target 8 -d _build -cp "$(print lib/*.jar | tr ' ' ':')":$CORENLP_JAR javasrc/**/*.java
 (cd _build && jar cf ../$jarfile .)
 ls -l $jarfile
 
@@ -0,0 +1,101 @@
+package corenlp;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+import util.JsonUtil;
+
+/**
+ * Bounds how many socket commands can be waiting for an annotation worker.
+ * A front end calls tryAdmit() when a command is ready to go to the workers; if the queue is full
+ * the command is answered right away with a BUSY frame (see busyResponse()) instead of
+ * waiting behind everything else, so the client can back off or go to another server.
+ * The worker calls started() when it picks the command up.
+ *
+ * Also keeps the queue-depth and wait-time counters for the log and the STATS command.
+ */
+class AdmissionQueue {
+	/** most commands that may be admitted but not yet started */
+	int capacity;
+
+	/** admitted, not yet started */
+	AtomicInteger depth = new AtomicInteger();
+	AtomicInteger peakDepth = new AtomicInteger();
+	AtomicLong numAdmitted = new AtomicLong();
+	AtomicLong numRejected = new AtomicLong();
+	AtomicLong numStarted = new AtomicLong();
+	AtomicLong totalWaitNanos = new AtomicLong();
+	AtomicLong maxWaitNanos = new AtomicLong();
+
+	AdmissionQueue(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/** true if the command may go to the workers; false if it should get a BUSY frame. */
+	boolean tryAdmit() {
+		while (true) {
+			int d = depth.get();
+			if (d >= capacity) {
+				numRejected.incrementAndGet();
+				return false;
+			}
+			if (depth.compareAndSet(d, d+1)) {
+				numAdmitted.incrementAndGet();
+				raise(peakDepth, d+1);
+				return true;
+			}
+		}
+	}
+
+	/** a worker has picked up a command that was admitted at `admittedNanos` (System.nanoTime()) */
+	void started(long admittedNanos) {
+		depth.decrementAndGet();
+		numStarted.incrementAndGet();
+		long wait = System.nanoTime() - admittedNanos;
+		totalWaitNanos.addAndGet(wait);
+		raise(maxWaitNanos, wait);
+	}
+
+	static void raise(AtomicInteger max, int value) {
+		int m;
+		while ( (m=max.get()) < value && !max.compareAndSet(m, value)) { }
+	}
+
+	static void raise(AtomicLong max, long value) {
+		long m;
+		while ( (m=max.get()) < value && !max.compareAndSet(m, value)) { }
+	}
+
+	double meanWaitMillis() {
+		long n = numStarted.get();
+		return n==0 ? 0 : totalWaitNanos.get() / 1e6 / n;
+	}
+
+	/** the response for a command that wasn't admitted */
+	JsonNode busyResponse() {
+		ObjectNode o = SocketServer.errorResponse("busy", "work queue is full", true);
+		o.put("queue_depth", depth.get());
+		return o;
+	}
+
+	JsonNode toJson() {
+		ObjectNode o = JsonUtil.newObject();
+		o.put("queue_capacity", capacity);
+		o.put("queue_depth", depth.get());
+		o.put("peak_queue_depth", peakDepth.get());
+		o.put("admitted", numAdmitted.get());
+		o.put("rejected", numRejected.get());
+		o.put("mean_wait_ms", meanWaitMillis());
+		o.put("max_wait_ms", maxWaitNanos.get() / 1e6);
+		return o;
+	}
+
+	String summary() {
+		return String.format("QUEUE: depth %d (peak %d of %d), %d admitted, %d rejected as busy, wait %.1f ms mean, %.1f ms max",
+				depth.get(), peakDepth.get(), capacity, numAdmitted.get(), numRejected.get(),
+				meanWaitMillis(), maxWaitNanos.get() / 1e6);
+	}
+}
@@ -0,0 +1,105 @@
+package corenlp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.List;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.JsonSerializable;
+import org.codehaus.jackson.map.SerializerProvider;
+import org.codehaus.jackson.node.POJONode;
+
+import util.JsonUtil;
+
+import com.google.common.collect.ImmutableList;
+
+import edu.stanford.nlp.pipeline.Annotation;
+
+/**
+ * The result of PARSEDOC or PARSEDOCS: annotated documents that haven't been written out yet.
+ * They're written when the response goes out, by a JsonGenerator on whatever the frame is written
+ * to (see SocketServer.writeResponse()).  So a chunked response goes from the annotations to the
+ * connection a chunk at a time, and the whole thing is never in memory as bytes (the connection
+ * holds a bounded amount; see NioFrontEnd.MAX_QUEUED_BYTES).  Only a length-prefixed frame, which
+ * needs the length first, is put in a SerializedJson, once.
+ *
+ * Commands return JsonNodes, so it travels wrapped in a POJONode (see toNode()).
+ * Anything that goes wrong while writing is an OutputFailedException (see JsonPipeline.writeDocument()).
+ * There's no deadline on the writing: the annotating, which the deadline is for, is done by then.
+ */
+class AnnotatedDocuments implements JsonSerializable {
+	final JsonPipeline pipeline;
+	final List<Annotation> documents;
+	/** a JSON array of the documents, for PARSEDOCS, rather than the one document on its own */
+	final boolean batch;
+	/** for a batch, the error response to write instead of each document that failed, null for the rest */
+	final List<JsonNode> errors;
+	final OutputOptions output;
+
+	AnnotatedDocuments(JsonPipeline pipeline, Annotation document, OutputOptions output) {
+		this.pipeline = pipeline;
+		this.documents = ImmutableList.of(document);
+		this.batch = false;
+		this.errors = null;
+		this.output = output;
+	}
+
+	AnnotatedDocuments(JsonPipeline pipeline, List<Annotation> documents, List<JsonNode> errors, OutputOptions output) {
+		this.pipeline = pipeline;
+		this.documents = documents;
+		this.batch = true;
+		this.errors = errors;
+		this.output = output;
+	}
+
+	/** the AnnotatedDocuments in a command's result, or null if it's something else */
+	static AnnotatedDocuments in(JsonNode result) {
+		if (result instanceof POJONode && ((POJONode) result).getPojo() instanceof AnnotatedDocuments) {
+			return (AnnotatedDocuments) ((POJONode) result).getPojo();
+		}
+		return null;
+	}
+
+	JsonNode toNode() {
+		return new POJONode(this);
+	}
+
+	/** writes them to `out` in output.format.  `out` is left open, and everything written has been passed on to it. */
+	void writeTo(OutputStream out) throws IOException {
+		JsonGenerator g = SerializedJson.generator(out, output.format);
+		g.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		serialize(g, null);
+		g.close();
+	}
+
+	public void serialize(JsonGenerator g, SerializerProvider provider) throws IOException {
+		if (batch) {
+			g.writeStartArray();
+		}
+		for (int i=0; i < documents.size(); i++) {
+			if (errors != null && errors.get(i) != null) {
+				JsonUtil.om.writeTree(g, errors.get(i));
+			} else {
+				pipeline.writeDocument(g, documents.get(i), output);
+			}
+		}
+		if (batch) {
+			g.writeEndArray();
+		}
+	}
+
+	/** as JSON text, whatever the format; writes them out again each time */
+	public String toString() {
+		try {
+			StringWriter text = new StringWriter();
+			JsonGenerator g = JsonUtil.om.getJsonFactory().createJsonGenerator(text);
+			serialize(g, null);
+			g.close();
+			return text.toString();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package corenlp;
+
+import java.util.List;
+import java.util.Set;
+
+import org.codehaus.jackson.JsonNode;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import edu.stanford.nlp.ling.CoreAnnotations.CharacterOffsetBeginAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.CharacterOffsetEndAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.NormalizedNamedEntityTagAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.SentenceIndexAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.SentencesAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.TextAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.TokenBeginAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.TokenEndAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.TokensAnnotation;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.pipeline.Annotation;
+import edu.stanford.nlp.util.ArrayCoreMap;
+import edu.stanford.nlp.util.CoreMap;
+
+/**
+ * Turns our own JSON output for a document back into CoreNLP annotations, so that
+ * a document that was, say, only tokenized and split before can get 'pos' or 'parse' without
+ * redoing the earlier steps (see JsonPipeline.processTextDocument).
+ *
+ * Restores what's cheap to carry around and cheap to check: tokens and their character offsets,
+ * sentences, and the per-token "pos", "lemmas", "ner" and "normner".  Anything else
+ * (trees, dependencies, entity mentions, coref) is annotated again.
+ * The tokens have to be exactly the ones this pipeline's tokenizer makes of the text, all of them,
+ * and each per-token list as long as its sentence; otherwise it's a bad request, since tags for
+ * tokens that aren't there would go into the later annotators unnoticed.
+ */
+class AnnotationFromJson {
+	static final String[] PER_TOKEN = { "pos", "lemmas", "ner", "normner" };
+
+	/**
+	 * sets up `document` (made from the same text as `previous`) with the annotations in `previous`.
+	 * `expected` is what tokenizing the text gives now; previous's tokens are checked against it,
+	 * and its CoreLabels get previous's sentences and tags and become the document's tokens.
+	 * returns the annotators whose output is now there, so they needn't be run.
+	 */
+	static Set<String> restore(Annotation document, String text, JsonNode previous, List<CoreLabel> expected) {
+		JsonNode sentences = previous.get("sentences");
+		if (sentences == null || !sentences.isArray()) {
+			throw new SocketServer.BadRequestException("'annotation' should be an earlier result in the rows layout, with 'sentences'");
+		}
+		Set<String> done = Sets.newHashSet("tokenize", "cleanxml", "ssplit");
+		boolean hasPos = true, hasLemmas = true, hasNer = true, hasNormNer = true;
+		List<CoreLabel> allTokens = Lists.newArrayList();
+		List<CoreMap> outSentences = Lists.newArrayList();
+		for (int s=0; s < sentences.size(); s++) {
+			JsonNode sent = sentences.get(s);
+			JsonNode words = sent.get("tokens");
+			JsonNode offsets = sent.get("char_offsets");
+			if (words == null || offsets == null || !words.isArray() || !offsets.isArray()
+					|| words.size() != offsets.size() || words.size() == 0) {
+				throw new SocketServer.BadRequestException("sentence " + s + " needs matching 'tokens' and 'char_offsets'");
+			}
+			for (String field : PER_TOKEN) {
+				if (sent.has(field) && (!sent.get(field).isArray() || sent.get(field).size() != words.size())) {
+					throw new SocketServer.BadRequestException(String.format("sentence %d has %d tokens but %d '%s'",
+							s, words.size(), sent.get(field).size(), field));
+				}
+			}
+			hasPos &= sent.has("pos");
+			hasLemmas &= sent.has("lemmas");
+			hasNer &= sent.has("ner");
+			hasNormNer &= sent.has("normner");
+			List<CoreLabel> tokens = Lists.newArrayList();
+			for (int i=0; i < words.size(); i++) {
+				JsonNode offset = offsets.get(i);
+				if (!offset.isArray() || offset.size() != 2 || !offset.get(0).isInt() || !offset.get(1).isInt()) {
+					throw new SocketServer.BadRequestException(String.format(
+							"sentence %d: char_offsets entry %d should be [begin, end], not %s", s, i, offset));
+				}
+				int begin = offset.get(0).asInt();
+				int end = offset.get(1).asInt();
+				int n = allTokens.size() + i;
+				CoreLabel should = n < expected.size() ? expected.get(n) : null;
+				if (should == null || should.beginPosition() != begin || should.endPosition() != end || !should.word().equals(words.get(i).asText())) {
+					throw new SocketServer.BadRequestException(String.format(
+							"token %d (\"%s\" at %d-%d) isn't what the text tokenizes to there; was it the same document, tokenized the same way?",
+							n, words.get(i).asText(), begin, end));
+				}
+				// the tokenizer's own token, so whatever else it put there (before/after whitespace, ...) is kept
+				CoreLabel token = should;
+				token.setIndex(i+1);
+				token.setSentIndex(s);
+				if (sent.has("pos")) token.setTag(sent.get("pos").get(i).asText());
+				if (sent.has("lemmas")) token.setLemma(sent.get("lemmas").get(i).asText());
+				if (sent.has("ner")) token.setNER(sent.get("ner").get(i).asText());
+				if (sent.has("normner") && !sent.get("normner").get(i).isNull()) {
+					token.set(NormalizedNamedEntityTagAnnotation.class, sent.get("normner").get(i).asText());
+				}
+				tokens.add(token);
+			}
+			int sentBegin = tokens.get(0).beginPosition();
+			int sentEnd = tokens.get(tokens.size()-1).endPosition();
+			CoreMap sentence = new ArrayCoreMap();
+			sentence.set(TextAnnotation.class, text.substring(sentBegin, sentEnd));
+			sentence.set(CharacterOffsetBeginAnnotation.class, sentBegin);
+			sentence.set(CharacterOffsetEndAnnotation.class, sentEnd);
+			sentence.set(TokensAnnotation.class, tokens);
+			sentence.set(TokenBeginAnnotation.class, allTokens.size());
+			sentence.set(TokenEndAnnotation.class, allTokens.size() + tokens.size());
+			sentence.set(SentenceIndexAnnotation.class, s);
+			allTokens.addAll(tokens);
+			outSentences.add(sentence);
+		}
+		if (allTokens.size() != expected.size()) {
+			throw new SocketServer.BadRequestException(String.format("the text has %d tokens, but 'annotation' only %d", expected.size(), allTokens.size()));
+		}
+		document.set(TokensAnnotation.class, allTokens);
+		document.set(SentencesAnnotation.class, outSentences);
+		if (hasPos) done.add("pos");
+		if (hasLemmas) done.add("lemma");
+		// 'ner' also gives "normner"; 'regexner' alone doesn't.
+		if (hasNer) done.add("regexner");
+		if (hasNer && hasNormNer) done.add("ner");
+		return done;
+	}
+}
@@ -0,0 +1,99 @@
+package corenlp;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+import edu.stanford.nlp.pipeline.Annotator;
+import edu.stanford.nlp.pipeline.Annotator.Requirement;
+
+/**
+ * What each of CoreNLP's built-in annotators requires and satisfies, without loading it.
+ * Copied from the annotators' requires() and requirementsSatisfied() in CoreNLP 3.5.2,
+ * including the cases where they depend on the annotator's properties.
+ * LazyAnnotator answers from here until its model is loaded, and pipelines are checked against it
+ * before anything is loaded.  null for annotators that aren't built in (customAnnotatorClass.*).
+ */
+class AnnotatorRequirements {
+
+	static Set<Requirement> requires(String name, Properties props) {
+		switch (name) {
+		case "tokenize": case "quote":
+			return Collections.emptySet();
+		case "cleanxml": case "ssplit":
+			return Collections.singleton(Annotator.TOKENIZE_REQUIREMENT);
+		case "pos": case "regexner":
+			return Annotator.TOKENIZE_AND_SSPLIT;
+		case "lemma": case "gender": case "depparse":
+			return Annotator.TOKENIZE_SSPLIT_POS;
+		case "truecase":
+			return Annotator.TOKENIZE_SSPLIT_POS_LEMMA;
+		case "ner":
+			// SUTime and the numeric classifiers look at lemmas; both are on unless turned off
+			boolean lemmas = Boolean.parseBoolean(props.getProperty("ner.useSUTime", "true"))
+					|| Boolean.parseBoolean(props.getProperty("ner.applyNumericClassifiers", "true"));
+			return lemmas ? Annotator.TOKENIZE_SSPLIT_POS_LEMMA : Annotator.TOKENIZE_AND_SSPLIT;
+		case "entitymentions":
+			return ImmutableSet.of(Annotator.TOKENIZE_REQUIREMENT, Annotator.NER_REQUIREMENT);
+		case "parse":
+			// the shift-reduce parser needs tags; the others tag as they parse
+			return props.getProperty("parse.model", "").contains("srparser") ? Annotator.TOKENIZE_SSPLIT_POS : Annotator.TOKENIZE_AND_SSPLIT;
+		case "dcoref": case "relation":
+			return ImmutableSet.of(Annotator.TOKENIZE_REQUIREMENT, Annotator.SSPLIT_REQUIREMENT, Annotator.POS_REQUIREMENT,
+					Annotator.NER_REQUIREMENT, Annotator.PARSE_REQUIREMENT);
+		case "sentiment":
+			return Annotator.PARSE_TAG_BINARIZED_TREES;
+		default:
+			return null;
+		}
+	}
+
+	static Set<Requirement> satisfies(String name, Properties props) {
+		switch (name) {
+		case "tokenize": return Collections.singleton(Annotator.TOKENIZE_REQUIREMENT);
+		case "cleanxml": return Collections.singleton(Annotator.CLEAN_XML_REQUIREMENT);
+		case "ssplit": return Collections.singleton(Annotator.SSPLIT_REQUIREMENT);
+		case "pos": return Collections.singleton(Annotator.POS_REQUIREMENT);
+		case "lemma": return Collections.singleton(Annotator.LEMMA_REQUIREMENT);
+		case "ner": return Collections.singleton(Annotator.NER_REQUIREMENT);
+		case "gender": return Collections.singleton(Annotator.GENDER_REQUIREMENT);
+		case "truecase": return Collections.singleton(Annotator.TRUECASE_REQUIREMENT);
+		case "depparse": return Collections.singleton(Annotator.DEPENDENCY_REQUIREMENT);
+		case "dcoref": return Collections.singleton(Annotator.DETERMINISTIC_COREF_REQUIREMENT);
+		case "relation": return Collections.singleton(Annotator.RELATION_EXTRACTOR_REQUIREMENT);
+		case "quote": return Collections.singleton(Annotator.QUOTE_REQUIREMENT);
+		case "regexner": case "entitymentions": case "sentiment":
+			return Collections.emptySet();
+		case "parse":
+			return Boolean.parseBoolean(props.getProperty("parse.binaryTrees", "false"))
+					? Annotator.PARSE_TAG_BINARIZED_TREES : Annotator.PARSE_AND_TAG;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * throws IllegalArgumentException, with the message StanfordCoreNLP's constructor would give,
+	 * if one of the annotators needs something none of the ones before it provide.
+	 * We don't know what an annotator that isn't built in provides, so the ones after it aren't checked.
+	 */
+	static void check(List<String> names, Properties props) {
+		Set<Requirement> satisfied = Sets.newHashSet();
+		for (String name : names) {
+			Set<Requirement> requires = requires(name, props);
+			if (requires == null) {
+				return;
+			}
+			for (Requirement r : requires) {
+				if (!satisfied.contains(r)) {
+					throw new IllegalArgumentException(String.format("annotator \"%s\" requires annotator \"%s\"", name, r));
+				}
+			}
+			satisfied.addAll(satisfies(name, props));
+		}
+	}
+}
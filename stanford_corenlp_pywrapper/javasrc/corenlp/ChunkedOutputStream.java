@@ -0,0 +1,80 @@
+package corenlp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes the body of a chunked response frame, so a response can be streamed out as it's
+ * serialized without knowing its length up front.  This holds one chunk; how much more
+ * is in memory is up to the stream it writes to (a socket's send buffer, or up to
+ * NioFrontEnd.MAX_QUEUED_BYTES on a non-blocking connection).
+ * 
+ * A chunked frame has the special length CHUNKED_LENGTH (-1, i.e. all ones) where the 8-byte
+ * length normally goes, followed by chunks, each a big-endian 4-byte length and that many bytes.
+ * A zero-length chunk ends the frame.
+ * With CHUNKED_DEFLATED_LENGTH (-2) instead, the chunks put together are a zlib (Deflate) stream
+ * that inflates to the JSON (see ConnectionOptions.compression).
+ */
+class ChunkedOutputStream extends OutputStream {
+	static final long CHUNKED_LENGTH = -1;
+	static final long CHUNKED_DEFLATED_LENGTH = -2;
+	static final int CHUNK_SIZE = 64 * 1024;
+
+	OutputStream out;
+	byte[] buffer = new byte[CHUNK_SIZE];
+	int count = 0;
+	/** whether a chunk has gone out to `out` yet */
+	boolean started = false;
+
+	ChunkedOutputStream(OutputStream out) {
+		this.out = out;
+	}
+
+	public void write(int b) throws IOException {
+		buffer[count++] = (byte) b;
+		if (count == CHUNK_SIZE) {
+			writeChunk();
+		}
+	}
+
+	public void write(byte[] bytes, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = Math.min(len, CHUNK_SIZE - count);
+			System.arraycopy(bytes, off, buffer, count, n);
+			count += n;
+			off += n;
+			len -= n;
+			if (count == CHUNK_SIZE) {
+				writeChunk();
+			}
+		}
+	}
+
+	void writeChunk() throws IOException {
+		if (count == 0) return;
+		out.write(ByteBuffer.allocate(4).putInt(0, count).array());
+		out.write(buffer, 0, count);
+		count = 0;
+		started = true;
+	}
+
+	boolean started() {
+		return started;
+	}
+
+	/** drops what's buffered, e.g. to write something else instead before anything has gone out */
+	void discard() {
+		count = 0;
+	}
+
+	/** writes out what's buffered and the terminating empty chunk.  doesn't close the underlying stream. */
+	void finish() throws IOException {
+		writeChunk();
+		out.write(new byte[4]);
+	}
+
+	/** the underlying stream is the connection, which outlives this response. */
+	public void close() {
+	}
+}
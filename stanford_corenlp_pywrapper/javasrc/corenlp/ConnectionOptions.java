@@ -0,0 +1,93 @@
+package corenlp;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+import util.JsonUtil;
+
+/**
+ * Per-connection settings that the client negotiates with the SETOPTS command, e.g.
+ *     SETOPTS \t {"chunked": true, "compression": "deflate", "format": "smile", "layout": "columnar"}
+ * Settings not mentioned keep their current values, and the reply is the full current set.
+ * The pipe and shared-memory modes count as one connection.
+ * 
+ * Each command runs with a snapshot of the settings taken when it's read off the connection (see
+ * snapshot()), so a SETOPTS only applies to commands read after it has run; the SETOPTS reply itself
+ * still uses the old ones.  So send SETOPTS untagged, before pipelining anything.
+ */
+class ConnectionOptions {
+	/** stream responses as a chunked frame (see ChunkedOutputStream) instead of one length-prefixed body */
+	boolean chunked = false;
+	/**
+	 * "deflate" to send responses of at least compressMinBytes zlib-compressed; "none" (the default) not to.
+	 * A compressed plain frame has SocketServer.DEFLATED_FLAG set in its length; a compressed chunked frame
+	 * has the length ChunkedOutputStream.CHUNKED_DEFLATED_LENGTH, and every chunked response is compressed.
+	 */
+	String compression = "none";
+	int compressMinBytes = 1024;
+	/** default PARSEDOC deadline in milliseconds, for documents that don't give their own; 0 for none */
+	long timeoutMillis = 0;
+	/** "format", "layout" and "typed_offsets", which PARSEDOC and PARSEDOCS objects can override */
+	OutputOptions output = new OutputOptions();
+	/** for a snapshot, the connection's own settings, which SETOPTS changes; null for those */
+	ConnectionOptions connection;
+
+	boolean deflate() {
+		return compression.equals("deflate");
+	}
+
+	/** the settings a command read now runs and is answered with */
+	ConnectionOptions snapshot() {
+		ConnectionOptions o = copy();
+		o.connection = connection();
+		return o;
+	}
+
+	/** the connection's own settings, for SETOPTS */
+	ConnectionOptions connection() {
+		return connection != null ? connection : this;
+	}
+
+	synchronized ConnectionOptions copy() {
+		ConnectionOptions o = new ConnectionOptions();
+		o.chunked = chunked;
+		o.compression = compression;
+		o.compressMinBytes = compressMinBytes;
+		o.timeoutMillis = timeoutMillis;
+		o.output = output.copy();
+		return o;
+	}
+
+	synchronized void update(JsonNode settings) {
+		if (!settings.isObject()) {
+			throw new SocketServer.BadRequestException("SETOPTS payload should be a JSON object");
+		}
+		if (settings.has("chunked")) {
+			chunked = settings.get("chunked").asBoolean();
+		}
+		if (settings.has("compression")) {
+			String c = settings.get("compression").asText();
+			if (!c.equals("none") && !c.equals("deflate")) {
+				throw new SocketServer.BadRequestException("compression should be none or deflate");
+			}
+			compression = c;
+		}
+		if (settings.has("compress_min_bytes")) {
+			compressMinBytes = settings.get("compress_min_bytes").asInt();
+		}
+		if (settings.has("timeout_ms")) {
+			timeoutMillis = settings.get("timeout_ms").asLong();
+		}
+		output = output.with(settings);
+	}
+
+	synchronized JsonNode toJson() {
+		ObjectNode o = JsonUtil.newObject();
+		o.put("chunked", chunked);
+		o.put("compression", compression);
+		o.put("compress_min_bytes", compressMinBytes);
+		o.put("timeout_ms", timeoutMillis);
+		output.addTo(o);
+		return o;
+	}
+}
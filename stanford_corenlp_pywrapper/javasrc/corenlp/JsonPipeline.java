@@ -3,47 +3,42 @@ package corenlp;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonNode;
 
-import util.JsonUtil;
-import util.U;
+import util.misc.Pair;
 
+import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
-
-import edu.stanford.nlp.dcoref.CorefChain;
-import edu.stanford.nlp.dcoref.CorefCoreAnnotations.CorefChainAnnotation;
-import edu.stanford.nlp.ling.CoreAnnotations.CharacterOffsetBeginAnnotation;
-import edu.stanford.nlp.ling.CoreAnnotations.CharacterOffsetEndAnnotation;
-import edu.stanford.nlp.ling.CoreAnnotations.EntityTypeAnnotation;
-import edu.stanford.nlp.ling.CoreAnnotations.LemmaAnnotation;
-import edu.stanford.nlp.ling.CoreAnnotations.MentionsAnnotation;
-import edu.stanford.nlp.ling.CoreAnnotations.NamedEntityTagAnnotation;
-import edu.stanford.nlp.ling.CoreAnnotations.NormalizedNamedEntityTagAnnotation;
-import edu.stanford.nlp.ling.CoreAnnotations.PartOfSpeechAnnotation;
-import edu.stanford.nlp.ling.CoreAnnotations.SentenceIndexAnnotation;
+import com.google.common.collect.Sets;
+
 import edu.stanford.nlp.ling.CoreAnnotations.SentencesAnnotation;
-import edu.stanford.nlp.ling.CoreAnnotations.TokenBeginAnnotation;
-import edu.stanford.nlp.ling.CoreAnnotations.TokenEndAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.TextAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations.TokensAnnotation;
 import edu.stanford.nlp.ling.CoreLabel;
-import edu.stanford.nlp.ling.IndexedWord;
 import edu.stanford.nlp.pipeline.Annotation;
+import edu.stanford.nlp.pipeline.AnnotationPipeline;
+import edu.stanford.nlp.pipeline.Annotator;
 import edu.stanford.nlp.pipeline.StanfordCoreNLP;
-// paths for stanford 3.2.0.  before that, it's e.s.nlp.trees.semgraph.SemanticGraph
-import edu.stanford.nlp.semgraph.SemanticGraph;
-import edu.stanford.nlp.semgraph.SemanticGraphCoreAnnotations.BasicDependenciesAnnotation;
-import edu.stanford.nlp.semgraph.SemanticGraphCoreAnnotations.CollapsedCCProcessedDependenciesAnnotation;
-import edu.stanford.nlp.semgraph.SemanticGraphEdge;
-import edu.stanford.nlp.time.TimeAnnotations.TimexAnnotation;
-import edu.stanford.nlp.trees.TreeCoreAnnotations;
 import edu.stanford.nlp.util.CoreMap;
 
 /** 
@@ -54,230 +49,394 @@ import edu.stanford.nlp.util.CoreMap;
  */
 public class JsonPipeline {
 
-	StanfordCoreNLP pipeline;
+	AnnotationPipeline pipeline;
 	Properties props = new Properties();
+	/** annotators to load on first use instead of at startup (--lazy) */
+	Set<String> lazyAnnotators = Collections.emptySet();
+	/** (name, annotator) in pipeline order; null if CoreNLP wouldn't hand them out. */
+	List<Pair<String,Annotator>> annotatorSteps;
+	/** what to write for each document, from the annotators; set by initializeCorenlpPipeline() */
+	OutputPlan outputPlan;
+
+	static final long NO_DEADLINE = Long.MAX_VALUE;
+
+	/**
+	 * rough cost per token of each annotator, relative to tokenize, for scheduling.
+	 * only the ratios matter, and only roughly: parse and dcoref dwarf everything else.
+	 */
+	static final Map<String,Double> ANNOTATOR_COSTS = new ImmutableMap.Builder<String,Double>()
+			.put("tokenize", 1.0).put("cleanxml", 1.0).put("ssplit", 0.5)
+			.put("pos", 4.0).put("lemma", 1.0).put("ner", 10.0).put("regexner", 2.0)
+			.put("entitymentions", 1.0).put("truecase", 4.0).put("depparse", 8.0)
+			.put("parse", 50.0).put("sentiment", 20.0).put("dcoref", 40.0)
+			.build();
+	static final double UNKNOWN_ANNOTATOR_COST = 5.0;
+
+	/**
+	 * annotators that keep per-document state in the annotator object, so two threads can't be in one
+	 * at once: dcoref's sieve system holds the document it's working on.  annotate() runs each of these
+	 * one document at a time; the other annotators are safe to share.
+	 */
+	static final Set<String> NON_REENTRANT = ImmutableSet.of("dcoref");
+
+	/**
+	 * annotators that only look at the document's sentences, one at a time, and how many sentences to give them at once
+	 * under a deadline; annotate() checks the clock between slices.  pos and lemma don't notice interrupts at all.
+	 * ner and parse do, but treat one as that sentence failing (a flat "X" tree for parse) and go on with the next,
+	 * so they get a sentence at a time: the one the interrupt lands in is the last one they see.
+	 */
+	static final Map<String,Integer> SENTENCE_BY_SENTENCE = ImmutableMap.of("pos", 10, "lemma", 10, "ner", 1, "parse", 1);
+	/** sum of ANNOTATOR_COSTS over this pipeline's annotators */
+	double costPerToken = 1.0;
+
+	static double costPerToken(String[] annotators) {
+		double total = 0;
+		for (String name : annotators) {
+			Double cost = ANNOTATOR_COSTS.get(name);
+			total += cost != null ? cost : UNKNOWN_ANNOTATOR_COST;
+		}
+		return total;
+	}
 	
-	int numTokens = 0;
-	int numDocs = 0;
-	int numChars = 0;
-	long startMilli = -1;
+	/** stats counters; atomic since processTextDocument() can be called from several worker threads at once. */
+	AtomicLong numTokens = new AtomicLong();
+	AtomicInteger numDocs = new AtomicInteger();
+	AtomicLong numChars = new AtomicLong();
+	AtomicLong startMilli = new AtomicLong(-1);
 	
 	public JsonPipeline() {
 	}
 
-	static void addTokenBasics(Map<String,Object> sent_info, CoreMap sentence) {
-		List<List<Integer>> tokenSpans = Lists.newArrayList();
-		List<String> tokenTexts = Lists.newArrayList();
-		for (CoreLabel token: sentence.get(TokensAnnotation.class)) {
-			List<Integer> span = Lists.newArrayList(token.beginPosition(), token.endPosition());
-			tokenSpans.add(span);
-			tokenTexts.add(token.value());
-		}
-		sent_info.put("tokens", (Object) tokenTexts);
-		sent_info.put("char_offsets", (Object) tokenSpans);
+	/** a pipeline with its own properties that adds to base's stats; initializeCorenlpPipeline() next. */
+	JsonPipeline(JsonPipeline base, Properties props) {
+		this.props = props;
+		lazyAnnotators = base.lazyAnnotators;
+		numTokens = base.numTokens;
+		numDocs = base.numDocs;
+		numChars = base.numChars;
+		startMilli = base.startMilli;
 	}
-	
-	@SuppressWarnings({ "rawtypes", "unchecked" })
-	static void addTokenAnno(Map<String,Object> sent_info, CoreMap sentence,
-			String keyname, Class annoClass) {
-		List<String> tokenAnnos = Lists.newArrayList();
-		for (CoreLabel token: sentence.get(TokensAnnotation.class)) {
-			tokenAnnos.add(token.getString(annoClass));
-		}
-		sent_info.put(keyname, (Object) tokenAnnos);
+
+	public void setConfigurationFromFile(String iniPropertiesFilename) throws FileNotFoundException, IOException {
+		props.load(new FileInputStream(iniPropertiesFilename));
 	}
 	
-	static void addParseTree(Map<String,Object> sent_info, CoreMap sentence) {
-		sent_info.put("parse", sentence.get(TreeCoreAnnotations.TreeAnnotation.class).toString());
+	/** assume the properties object has been set */
+	void initializeCorenlpPipeline() {
+		outputPlan = OutputPlan.forAnnotators(annotators());
+		costPerToken = costPerToken(annotators());
+		for (String name : annotators()) {
+			if (lazyAnnotators.contains(name)) {
+				initializeLazyPipeline();
+				return;
+			}
+		}
+		ModelLoader.preload(props, Lists.newArrayList(annotators()));
+		// the same annotator objects the pipeline runs, so we can run them one at a time under a deadline.
+		// The pool keeps one annotator per name, for whichever properties registered last, so the lookups go
+		// under the lock that guards it (see ModelLoader.SharedPool) along with the constructor; otherwise a pipeline being built for other
+		// properties (see PipelineCache) could swap in its own in between.  The models are preloaded by then.
+		synchronized (StanfordCoreNLP.class) {
+			pipeline = new StanfordCoreNLP(props);
+			annotatorSteps = Lists.newArrayList();
+			for (String name : annotators()) {
+				Annotator annotator = StanfordCoreNLP.getExistingAnnotator(name);
+				if (annotator == null) {
+					annotatorSteps = null;
+					break;
+				}
+				annotatorSteps.add(Pair.makePair(name, annotator));
+			}
+		}
 	}
-	
-	@SuppressWarnings("rawtypes")
-	static void addDepsCC(Map<String,Object> sent_info, CoreMap sentence) {
-		SemanticGraph dependencies = sentence.get(CollapsedCCProcessedDependenciesAnnotation.class);
-		List deps = jsonFriendlyDeps(dependencies);
-		sent_info.put("deps_cc", deps);
+
+	/**
+	 * like initializeCorenlpPipeline(), but the annotators in lazyAnnotators are only loaded when
+	 * the first document gets to them (see LazyAnnotator).  The pipeline is put together here instead of
+	 * by StanfordCoreNLP, which would load them all, so it takes only the annotators CoreNLP has
+	 * built in.  Each one's requirements are checked up front, as the constructor would, from
+	 * AnnotatorRequirements rather than the annotators themselves.
+	 */
+	void initializeLazyPipeline() {
+		if (Boolean.parseBoolean(props.getProperty("enforceRequirements", "true"))) {
+			AnnotatorRequirements.check(Lists.newArrayList(annotators()), props);
+		}
+		List<String> eager = Lists.newArrayList();
+		for (String name : annotators()) {
+			if (!lazyAnnotators.contains(name)) eager.add(name);
+		}
+		ModelLoader.preload(props, eager);
+		pipeline = new AnnotationPipeline();
+		annotatorSteps = Lists.newArrayList();
+		for (String name : annotators()) {
+			Annotator annotator = lazyAnnotators.contains(name) ? new LazyAnnotator(name, props) : ModelLoader.load(props, name);
+			pipeline.addAnnotator(annotator);
+			annotatorSteps.add(Pair.makePair(name, annotator));
+		}
+		SocketServer.log("Will load " + Joiner.on(", ").join(Sets.intersection(lazyAnnotators, Sets.newHashSet(annotators())))
+				+ " when first needed");
 	}
-	
-	@SuppressWarnings("rawtypes")
-	static void addDepsBasic(Map<String,Object> sent_info, CoreMap sentence) {
-		SemanticGraph dependencies = sentence.get(BasicDependenciesAnnotation.class);
-		List deps = jsonFriendlyDeps(dependencies);
-		sent_info.put("deps_basic", deps);
+
+	/**
+	 * a pipeline with this one's annotators up to the first lazy one, e.g. to warm up without loading
+	 * any of those; this one if none are lazy, null if the first one is.
+	 */
+	JsonPipeline withoutLazyAnnotators() {
+		List<String> eager = Lists.newArrayList();
+		for (String name : annotators()) {
+			if (lazyAnnotators.contains(name)) break;
+			eager.add(name);
+		}
+		if (eager.size() == annotators().length) {
+			return this;
+		}
+		if (eager.isEmpty()) {
+			return null;
+		}
+		Properties eagerProps = new Properties();
+		eagerProps.putAll(props);
+		eagerProps.setProperty("annotators", Joiner.on(", ").join(eager));
+		JsonPipeline p = new JsonPipeline(this, eagerProps);
+		p.initializeCorenlpPipeline();
+		return p;
 	}
-	@SuppressWarnings({ "rawtypes", "unchecked" })
-	static void addEntityMentions(Map<String,Object> sent_info, CoreMap sentence) {
-        List<CoreMap> coreMentions = sentence.get(MentionsAnnotation.class);
-        List<Map> jsonMentions = new ArrayList<>();
-        /* trying to figure out the keys in each mention. here's a printout from one.
-MENTION August 2014
-class edu.stanford.nlp.ling.CoreAnnotations$TextAnnotation	August 2014
-class edu.stanford.nlp.ling.CoreAnnotations$CharacterOffsetBeginAnnotation	3
-class edu.stanford.nlp.ling.CoreAnnotations$CharacterOffsetEndAnnotation	14
-class edu.stanford.nlp.ling.CoreAnnotations$TokensAnnotation	[August-2, 2014-3]
-class edu.stanford.nlp.ling.CoreAnnotations$TokenBeginAnnotation	1
-class edu.stanford.nlp.ling.CoreAnnotations$TokenEndAnnotation	3
-class edu.stanford.nlp.ling.CoreAnnotations$NamedEntityTagAnnotation	DATE
-class edu.stanford.nlp.ling.CoreAnnotations$NormalizedNamedEntityTagAnnotation	2014-08
-class edu.stanford.nlp.ling.CoreAnnotations$EntityTypeAnnotation	DATE
-class edu.stanford.nlp.ling.CoreAnnotations$SentenceIndexAnnotation	0
-class edu.stanford.nlp.time.TimeAnnotations$TimexAnnotation	<TIMEX3 tid="t1" type="DATE" value="2014-08">August 2014</TIMEX3>
-MENTION Barack Obama
-class edu.stanford.nlp.ling.CoreAnnotations$TextAnnotation	Barack Obama
-class edu.stanford.nlp.ling.CoreAnnotations$CharacterOffsetBeginAnnotation	17
-class edu.stanford.nlp.ling.CoreAnnotations$CharacterOffsetEndAnnotation	29
-class edu.stanford.nlp.ling.CoreAnnotations$TokensAnnotation	[Barack-5, Obama-6]
-class edu.stanford.nlp.ling.CoreAnnotations$TokenBeginAnnotation	4
-class edu.stanford.nlp.ling.CoreAnnotations$TokenEndAnnotation	6
-class edu.stanford.nlp.ling.CoreAnnotations$NamedEntityTagAnnotation	PERSON
-class edu.stanford.nlp.ling.CoreAnnotations$EntityTypeAnnotation	PERSON
-class edu.stanford.nlp.ling.CoreAnnotations$SentenceIndexAnnotation	0
-MENTION Paris
-class edu.stanford.nlp.ling.CoreAnnotations$TextAnnotation	Paris
-class edu.stanford.nlp.ling.CoreAnnotations$CharacterOffsetBeginAnnotation	66
-class edu.stanford.nlp.ling.CoreAnnotations$CharacterOffsetEndAnnotation	71
-class edu.stanford.nlp.ling.CoreAnnotations$TokensAnnotation	[Paris-5]
-class edu.stanford.nlp.ling.CoreAnnotations$TokenBeginAnnotation	14
-class edu.stanford.nlp.ling.CoreAnnotations$TokenEndAnnotation	15
-class edu.stanford.nlp.ling.CoreAnnotations$NamedEntityTagAnnotation	LOCATION
-class edu.stanford.nlp.ling.CoreAnnotations$EntityTypeAnnotation	LOCATION
-class edu.stanford.nlp.ling.CoreAnnotations$SentenceIndexAnnotation	1
-         */
-        for (CoreMap mention : coreMentions) {
-//            U.p("MENTION " + mention);
-//        	for (Class k : mention.keySet()) {
-//        		U.pf("%s\t%s\n", k, mention.get(k));
-//        	}
-            Map m = new HashMap<String, Object>();
-            m.put("tokspan", Lists.newArrayList(
-            		mention.get(TokenBeginAnnotation.class).intValue(),
-            		mention.get(TokenEndAnnotation.class).intValue()));
-            m.put("charspan", Lists.newArrayList(
-            		mention.get(CharacterOffsetBeginAnnotation.class).intValue(),
-            		mention.get(CharacterOffsetEndAnnotation.class).intValue()));
-            m.put("sentence", mention.get(SentenceIndexAnnotation.class).intValue());
-            String entityType = mention.get(EntityTypeAnnotation.class);
-            m.put("type", entityType);
-            if (mention.containsKey(NormalizedNamedEntityTagAnnotation.class)) {
-            	m.put("normalized", mention.get(NormalizedNamedEntityTagAnnotation.class));
-            }
-            if (mention.containsKey(TimexAnnotation.class)) {
-            	m.put("timex_xml", mention.get(TimexAnnotation.class).toString());
-            }
-            jsonMentions.add(m);
-        }
-        sent_info.put("entitymentions", jsonMentions);
+
+	/** the annotators loaded so far; all of them unless some are lazy */
+	List<String> loadedAnnotators() {
+		if (annotatorSteps == null) {
+			return Lists.newArrayList(annotators());
+		}
+		List<String> loaded = Lists.newArrayList();
+		for (Pair<String,Annotator> step : annotatorSteps) {
+			if (!(step.second instanceof LazyAnnotator) || ((LazyAnnotator) step.second).isLoaded()) {
+				loaded.add(step.first);
+			}
+		}
+		return loaded;
 	}
-	
-	@SuppressWarnings({ "rawtypes", "unchecked" })
-	static List jsonFriendlyDeps(SemanticGraph dependencies) {
-		List deps = new ArrayList();
-		// Since the dependencies are for each sentence, we obtain the root
-		// and add it to the list of dependency triples.
-		// The method is explained in the following link:
-		// http://stackoverflow.com/questions/16300056/stanford-core-nlp-missing-roots
-		List deptriple;
-		try {
-			IndexedWord root = dependencies.getFirstRoot();
-			deptriple = Lists.newArrayList(
-					"root",
-					-1,
-					root.index() - 1);
-			deps.add(deptriple);
-		} catch (Exception e) {
-			// This can happen: https://github.com/stanfordnlp/CoreNLP/issues/55
-		}
-
-		for (SemanticGraphEdge e : dependencies.edgeIterable()) {
-			deptriple = Lists.newArrayList(
-					e.getRelation().toString(), 
-					e.getGovernor().index() - 1,
-					e.getDependent().index() - 1);
-			deps.add(deptriple);
-		}
-		return deps;
+
+	/**
+	 * the annotator objects this pipeline runs that are loaded (a LazyAnnotator's once it's loaded),
+	 * or null if we don't know which they are (annotatorSteps is null).
+	 */
+	List<Annotator> annotatorObjects() {
+		List<Pair<String,Annotator>> steps = annotatorSteps;
+		if (steps == null) {
+			return null;
+		}
+		List<Annotator> loaded = Lists.newArrayList();
+		for (Pair<String,Annotator> step : steps) {
+			Annotator annotator = step.second;
+			if (annotator instanceof LazyAnnotator) {
+				annotator = ((LazyAnnotator) annotator).annotator;
+			}
+			if (annotator != null) {
+				loaded.add(annotator);
+			}
+		}
+		return loaded;
 	}
-	
-	public void setConfigurationFromFile(String iniPropertiesFilename) throws FileNotFoundException, IOException {
-		props.load(new FileInputStream(iniPropertiesFilename));
+
+	/** something went wrong while annotating a document */
+	static class AnnotationException extends RuntimeException {
+		/** the annotator that was running or about to run; null if it was during output, or unknown */
+		String annotator;
+		AnnotationException(String message, String annotator, Throwable cause) {
+			super(message + (annotator != null ? " in annotator " + annotator : ""), cause);
+			this.annotator = annotator;
+		}
 	}
-	
-	/** assume the properties object has been set */
-	void initializeCorenlpPipeline() {
-		pipeline = new StanfordCoreNLP(props);
+
+	/** thrown when a document is still being processed at its deadline */
+	static class DeadlineExceededException extends AnnotationException {
+		DeadlineExceededException(String annotator) {
+			super("deadline exceeded", annotator, null);
+		}
+	}
+
+	/** an annotator threw; the cause is what it threw */
+	static class AnnotatorFailedException extends AnnotationException {
+		AnnotatorFailedException(String annotator, Throwable cause) {
+			super(cause.toString(), annotator, cause);
+		}
+	}
+
+	/** writing out an annotated document threw; the cause is what it threw */
+	static class OutputFailedException extends AnnotationException {
+		OutputFailedException(Throwable cause) {
+			super("couldn't write the annotations: " + cause, null, cause);
+		}
 	}
 
-	List getCorefInfo(Annotation doc) {
-		Map<Integer, CorefChain> corefChains = doc.get(CorefChainAnnotation.class);
-//		List<CoreMap> sentences = doc.get(SentencesAnnotation.class);
-		List entities = new ArrayList();
-		for (CorefChain chain : corefChains.values()) {
-			List mentions = new ArrayList();
-			CorefChain.CorefMention representative = chain.getRepresentativeMention();
-			for (CorefChain.CorefMention corement : chain.getMentionsInTextualOrder()) {
-				Map outment = new HashMap();
-				outment.put("sentence", corement.sentNum-1);
-				outment.put("tokspan_in_sentence", Lists.newArrayList(
-								corement.startIndex-1, corement.endIndex-1));
-				outment.put("head",corement.headIndex-1);
-				outment.put("gender", corement.gender.toString());
-				outment.put("animacy", corement.animacy.toString());
-				outment.put("number", corement.number.toString());
-				outment.put("mentiontype", corement.mentionType.toString());
-				outment.put("mentionid", corement.mentionID);
-				if (representative!=null && corement.mentionID==representative.mentionID) {
-					outment.put("representative", true);
+	/**
+	 * throws IllegalArgumentException if the annotators in these properties, in this order, can't make
+	 * our output: each one's requirements have to come before it (see AnnotatorRequirements), and there
+	 * have to be tokens and sentences, since everything is written out sentence by sentence.
+	 */
+	static void checkAnnotators(Properties props) {
+		List<String> names = Lists.newArrayList(props.getProperty("annotators", "").trim().split("[,\\s]+"));
+		if (!names.contains("tokenize") || !names.contains("ssplit")) {
+			throw new IllegalArgumentException("the annotators have to include tokenize and ssplit");
+		}
+		if (Boolean.parseBoolean(props.getProperty("enforceRequirements", "true"))) {
+			AnnotatorRequirements.check(names, props);
+		}
+	}
+
+	/** interrupts workers at their deadline */
+	static ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "deadline-watchdog");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/**
+	 * Runs the annotators one at a time, so a failure can be pinned on one of them
+	 * (AnnotatorFailedException), and checks the deadline before and after each.
+	 * pos, lemma, ner and parse get the sentences a slice at a time, with the deadline checked between slices
+	 * (see SENTENCE_BY_SENTENCE).  At the deadline the thread also gets interrupted; what an annotator
+	 * made of the sentence it was on then is thrown away with the rest, since the check after it fails.
+	 * The rest, dcoref above all, look at the whole document at once and ignore interrupts, so once
+	 * started they run to the end, past the deadline if need be, and then the document times out.
+	 */
+	void annotate(Annotation document, long deadlineMillis) {
+		annotate(document, deadlineMillis, Collections.<String>emptySet());
+	}
+
+	/**
+	 * same, but resuming a document that already has the output of the annotators in `alreadyDone`.
+	 * only a leading run of them is skipped: once one annotator has run again, everything after it
+	 * runs too, since it may depend on the new output.
+	 */
+	void annotate(Annotation document, long deadlineMillis, Set<String> alreadyDone) {
+		if (annotatorSteps == null) {
+			try {
+				if (Collections.disjoint(NON_REENTRANT, Arrays.asList(annotators()))) {
+					pipeline.annotate(document);
+				} else {
+					synchronized (pipeline) {
+						pipeline.annotate(document);
+					}
+				}
+			} catch (RuntimeException e) {
+				throw new AnnotatorFailedException(null, e);
+			}
+			return;
+		}
+		final Thread worker = Thread.currentThread();
+		final boolean[] done = { false };
+		ScheduledFuture<?> interrupter = null;
+		if (deadlineMillis != NO_DEADLINE) {
+			interrupter = watchdog.schedule(new Runnable() {
+				public void run() {
+					synchronized (done) {
+						if (!done[0]) worker.interrupt();
+					}
+				}
+			}, deadlineMillis - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+		String current = null;
+		try {
+			boolean resuming = true;
+			for (Pair<String,Annotator> step : annotatorSteps) {
+				current = step.first;
+				resuming &= alreadyDone.contains(current);
+				if (resuming) continue;
+				checkDeadline(deadlineMillis, current);
+				if (NON_REENTRANT.contains(current)) {
+					synchronized (step.second) {
+						step.second.annotate(document);
+					}
+				} else if (SENTENCE_BY_SENTENCE.containsKey(current) && deadlineMillis != NO_DEADLINE) {
+					annotateInSlices(step.second, document, deadlineMillis, current);
+				} else {
+					step.second.annotate(document);
 				}
-				mentions.add(outment);
+				// ner and parse carry on past an interrupt, and nothing else would notice after the last step.
+				checkDeadline(deadlineMillis, current);
+			}
+		} catch (RuntimeException e) {
+			// how the interrupt shows up depends on the annotator, so go by the clock.
+			if (System.currentTimeMillis() >= deadlineMillis) {
+				throw new DeadlineExceededException(current);
+			}
+			throw new AnnotatorFailedException(current, e);
+		} finally {
+			if (interrupter != null) {
+				interrupter.cancel(false);
+				synchronized (done) {
+					done[0] = true;
+				}
+				// in case the watchdog got there first; pooled threads get reused.
+				Thread.interrupted();
+			}
+		}
+	}
+
+	/** runs a SENTENCE_BY_SENTENCE annotator on views of the document that hold a slice of its sentences each */
+	static void annotateInSlices(Annotator annotator, Annotation document, long deadlineMillis, String name) {
+		List<CoreMap> sentences = document.get(SentencesAnnotation.class);
+		if (sentences == null) {
+			// let it complain the way it usually does
+			annotator.annotate(document);
+			return;
+		}
+		int sliceSize = SENTENCE_BY_SENTENCE.get(name);
+		for (int i = 0; i < sentences.size(); i += sliceSize) {
+			checkDeadline(deadlineMillis, name);
+			Annotation slice = new Annotation(document.get(TextAnnotation.class));
+			slice.set(SentencesAnnotation.class, sentences.subList(i, Math.min(i + sliceSize, sentences.size())));
+			annotator.annotate(slice);
+		}
+	}
+
+	/**
+	 * annotate() for each of the documents.  This thread works through them, and up to maxHelpers tasks handed to
+	 * `helpers` (the server's workers, so the batch shares them and their priorities with everything else) join in
+	 * when they get their turn.  It only waits for documents someone has started, so it's done even if no helper
+	 * ever runs.  Returns an error response (see SocketServer.errorFor()) for each document that failed,
+	 * null for each one that didn't.
+	 */
+	List<JsonNode> annotateAll(final List<Annotation> documents, Executor helpers, int maxHelpers) {
+		final AtomicInteger next = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(documents.size());
+		final JsonNode[] errors = new JsonNode[documents.size()];
+		Runnable work = new Runnable() {
+			public void run() {
+				int i;
+				while ( (i=next.getAndIncrement()) < documents.size()) {
+					try {
+						annotate(documents.get(i), NO_DEADLINE);
+					} catch (RuntimeException | OutOfMemoryError e) {
+						errors[i] = SocketServer.errorFor(e);
+					} finally {
+						done.countDown();
+					}
+				}
+			}
+		};
+		for (int n=0; n < Math.min(maxHelpers, documents.size()-1); n++) {
+			try {
+				helpers.execute(work);
+			} catch (RejectedExecutionException e) {
+				// shutting down; we'll do them ourselves
+				break;
 			}
-			Map entity = ImmutableMap.builder()
-					.put("mentions", mentions)
-					.put("entityid", chain.getChainID())
-					.build();
-			entities.add(entity);
 		}
-		return entities;
+		work.run();
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		return Arrays.asList(errors);
 	}
-	/** annotator is a stanford corenlp notion.  */
-	void addAnnoToSentenceObject(Map<String,Object> sent_info, CoreMap sentence, String annotator) {
-		switch(annotator) {
-		case "tokenize":
-		case "cleanxml":
-		case "ssplit":
-			break;
-		case "pos":
-			addTokenAnno(sent_info,sentence, "pos", PartOfSpeechAnnotation.class);
-			break;
-		case "lemma":
-			addTokenAnno(sent_info,sentence, "lemmas", LemmaAnnotation.class);
-			break;
-		case "ner":
-			addTokenAnno(sent_info, sentence, "ner", NamedEntityTagAnnotation.class);
-			addTokenAnno(sent_info, sentence, "normner", NormalizedNamedEntityTagAnnotation.class);
-			break;
-		case "regexner":
-			addTokenAnno(sent_info, sentence, "ner", NamedEntityTagAnnotation.class);
-			break;
-		case "sentiment": throw new RuntimeException("TODO");
-		case "truecase": throw new RuntimeException("TODO");
-		case "parse":
-			addParseTree(sent_info,sentence);
-			addDepsCC(sent_info,sentence);
-			addDepsBasic(sent_info,sentence);
-			break;
-		case "depparse":
-			addDepsCC(sent_info,sentence);
-			addDepsBasic(sent_info,sentence);
-			break;
-		case "dcoref":
-			break;
-		case "relation": throw new RuntimeException("TODO");
-		case "natlog": throw new RuntimeException("TODO");
-		case "quote": throw new RuntimeException("TODO");
-		case "entitymentions":
-			addEntityMentions(sent_info, sentence);
-			break;
-		default:
-			throw new RuntimeException("don't know how to handle annotator " + annotator);
+
+	static void checkDeadline(long deadlineMillis, String annotator) {
+		if (System.currentTimeMillis() >= deadlineMillis) {
+			throw new DeadlineExceededException(annotator);
 		}
 	}
 
@@ -289,40 +448,127 @@ class edu.stanford.nlp.ling.CoreAnnotations$SentenceIndexAnnotation	1
 		return annotatorsAllstr.trim().split(",\\s*");
 	}
 	
-	/** runs the corenlp pipeline with all options, and returns all results as a JSON object. */
-	@SuppressWarnings({ "rawtypes", "unchecked" })
+	/** runs the corenlp pipeline with all options, and returns all results as a JSON object.
+	 * safe to call concurrently: the StanfordCoreNLP pipeline is shared, everything else is per-call,
+	 * and annotate() keeps documents out of each other's way in the NON_REENTRANT annotators.
+	 * the result is AnnotatedDocuments, which are only written out when the result is. */
 	JsonNode processTextDocument(String doctext) {
-		if (startMilli==-1)  startMilli = System.currentTimeMillis();
-		numDocs++;
-		numChars += doctext.length();
+		return processTextDocument(doctext, NO_DEADLINE);
+	}
 
+	/** same, but gives up with a DeadlineExceededException once System.currentTimeMillis() passes deadlineMillis. */
+	JsonNode processTextDocument(String doctext, long deadlineMillis) {
+		return processTextDocument(doctext, null, deadlineMillis, new OutputOptions());
+	}
+
+	/**
+	 * same, but if `previous` is our earlier output for this text, starts from the annotations in it
+	 * (see AnnotationFromJson) and only runs the annotators after those.
+	 * the result is encoded and laid out as `output` says.
+	 */
+	JsonNode processTextDocument(String doctext, JsonNode previous, long deadlineMillis, OutputOptions output) {
+		countDocument(doctext);
 		Annotation document = new Annotation(doctext);
-		pipeline.annotate(document);
+		Set<String> alreadyDone = Collections.emptySet();
+		if (previous != null && annotatorSteps != null) {
+			alreadyDone = AnnotationFromJson.restore(document, doctext, previous, tokenize(doctext));
+		}
+		annotate(document, deadlineMillis, alreadyDone);
+		return new AnnotatedDocuments(this, document, output).toNode();
+	}
 
-		List<CoreMap> sentences = document.get(SentencesAnnotation.class);
-		List<Map> outSentences = Lists.newArrayList();
-
-		for(CoreMap sentence: sentences) {
-			Map<String,Object> sent_info = Maps.newHashMap();
-			addTokenBasics(sent_info, sentence);
-			numTokens += ((List) sent_info.get("tokens")).size();
-			for (String annotator : annotators()) {
-				addAnnoToSentenceObject(sent_info, sentence, annotator);
+	/** the text's tokens, from this pipeline's tokenize (and cleanxml, if it has it) */
+	List<CoreLabel> tokenize(String doctext) {
+		Annotation tokenized = new Annotation(doctext);
+		for (Pair<String,Annotator> step : annotatorSteps) {
+			if (step.first.equals("tokenize") || step.first.equals("cleanxml")) {
+				step.second.annotate(tokenized);
 			}
-			outSentences.add(sent_info);
 		}
+		return tokenized.get(TokensAnnotation.class);
+	}
+
+	/**
+	 * processTextDocument() for a batch of documents, annotated on this thread and up to maxHelpers of the
+	 * `helpers` (see annotateAll()).  returns a JSON array with one result per document, in the same order,
+	 * as `output` says; a document that failed gets its error response in its place.
+	 */
+	JsonNode processTextDocuments(List<String> doctexts, Executor helpers, int maxHelpers, OutputOptions output) {
+		List<Annotation> documents = Lists.newArrayList();
+		for (String doctext : doctexts) {
+			countDocument(doctext);
+			documents.add(new Annotation(doctext));
+		}
+		List<JsonNode> errors = annotateAll(documents, helpers, maxHelpers);
+		return new AnnotatedDocuments(this, documents, errors, output).toNode();
+	}
+
+	/**
+	 * estimated cost of annotating a document of this many characters, in tokenize-one-token units.
+	 * tokens per character comes from the documents seen so far.
+	 */
+	double estimateCost(long docChars) {
+		return estimateCost(docChars, costPerToken);
+	}
+
+	/** same, for a document that'll go through other annotators (see costPerToken(String[])) */
+	double estimateCost(long docChars, double costPerToken) {
+		long chars = numChars.get();
+		long tokens = numTokens.get();
+		double tokensPerChar = chars > 10000 && tokens > 0 ? tokens*1.0 / chars : 0.25;
+		return docChars * tokensPerChar * costPerToken;
+	}
+
+	/** forget the documents seen so far, e.g. the warm-up ones */
+	void resetStats() {
+		numTokens.set(0);
+		numDocs.set(0);
+		numChars.set(0);
+		startMilli.set(-1);
+	}
+
+	void countDocument(String doctext) {
+		startMilli.compareAndSet(-1, System.currentTimeMillis());
+		numDocs.incrementAndGet();
+		numChars.addAndGet(doctext.length());
+	}
 
+	/**
+	 * writes one annotated document in our output format, laid out as `output` says (see AnnotatedDocuments).
+	 * anything going wrong here is an OutputFailedException, since it would every time.
+	 */
+	void writeDocument(JsonGenerator g, Annotation document, OutputOptions output) throws IOException {
+		try {
+			writeDocumentFields(g, document, output);
+		} catch (RuntimeException e) {
+			throw new OutputFailedException(e);
+		}
+	}
 
-		ImmutableMap.Builder b = new ImmutableMap.Builder();
-//		b.put("text", doctext);
-		b.put("sentences", outSentences);
-		
-		if (Lists.newArrayList(annotators()).contains("dcoref")) {
-			List outCoref = getCorefInfo(document);
-			b.put("entities", outCoref);
+	void writeDocumentFields(JsonGenerator g, Annotation document, OutputOptions output) throws IOException {
+		List<CoreMap> sentences = document.get(SentencesAnnotation.class);
+		g.writeStartObject();
+		if (output.columnar()) {
+			for (CoreMap sentence : sentences) {
+				numTokens.addAndGet(sentence.get(TokensAnnotation.class).size());
+			}
+			outputPlan.writeColumns(g, sentences, output.typedOffsets);
+		} else {
+			g.writeFieldName("sentences");
+			g.writeStartArray();
+			for (CoreMap sentence : sentences) {
+				List<CoreLabel> tokens = sentence.get(TokensAnnotation.class);
+				numTokens.addAndGet(tokens.size());
+				outputPlan.writeSentence(g, sentence, tokens);
+			}
+			g.writeEndArray();
+		}
+//		g.writeStringField("text", doctext);
+		if (outputPlan.entities) {
+			g.writeFieldName("entities");
+			OutputPlan.writeEntities(g, document);
 		}
-		Map outDoc = b.build();
-		return JsonUtil.toJson(outDoc);
+		g.writeEndObject();
 	}
 
 
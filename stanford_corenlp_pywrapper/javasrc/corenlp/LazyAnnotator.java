@@ -0,0 +1,59 @@
+package corenlp;
+
+import java.util.Properties;
+import java.util.Set;
+
+import edu.stanford.nlp.pipeline.Annotation;
+import edu.stanford.nlp.pipeline.Annotator;
+
+/**
+ * Stands in for an annotator that hasn't been loaded yet, and loads it the first time a document gets to it
+ * (see --lazy in SocketServer).  Threads that get here while it's loading wait for that one load;
+ * once it's loaded, it's a volatile read and a call.  Other annotators aren't held up meanwhile:
+ * it loads through ModelLoader, not under CoreNLP's pool lock.
+ * Asking what it requires or satisfies doesn't load it: until it's loaded, the answer comes from
+ * AnnotatorRequirements.
+ */
+class LazyAnnotator implements Annotator {
+	String name;
+	Properties props;
+	volatile Annotator annotator;
+
+	LazyAnnotator(String name, Properties props) {
+		this.name = name;
+		this.props = props;
+	}
+
+	Annotator get() {
+		Annotator a = annotator;
+		if (a != null) {
+			return a;
+		}
+		synchronized (this) {
+			if (annotator == null) {
+				long start = System.currentTimeMillis();
+				annotator = ModelLoader.load(props, name);
+				SocketServer.log(String.format("Loaded annotator %s on first use in %.1f sec", name, (System.currentTimeMillis() - start) / 1e3));
+			}
+			return annotator;
+		}
+	}
+
+	boolean isLoaded() {
+		return annotator != null;
+	}
+
+	public void annotate(Annotation document) {
+		get().annotate(document);
+	}
+
+	public Set<Requirement> requirementsSatisfied() {
+		Set<Requirement> satisfies = isLoaded() ? null : AnnotatorRequirements.satisfies(name, props);
+		return satisfies != null ? satisfies : get().requirementsSatisfied();
+	}
+
+	public Set<Requirement> requires() {
+		Set<Requirement> requires = isLoaded() ? null : AnnotatorRequirements.requires(name, props);
+		return requires != null ? requires : get().requires();
+	}
+}
@@ -0,0 +1,267 @@
+package corenlp;
+
+import java.lang.reflect.Field;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import edu.stanford.nlp.pipeline.Annotator;
+import edu.stanford.nlp.pipeline.AnnotatorFactories;
+import edu.stanford.nlp.pipeline.AnnotatorFactory;
+import edu.stanford.nlp.pipeline.AnnotatorImplementations;
+import edu.stanford.nlp.pipeline.AnnotatorPool;
+import edu.stanford.nlp.pipeline.StanfordCoreNLP;
+
+/**
+ * Loads a pipeline's annotators (the POS tagger, NER classifiers, parser, coref dictionaries, ...)
+ * on parallel threads, before the StanfordCoreNLP constructor would load them one after another.
+ * They don't depend on each other, so startup takes about as long as the slowest model instead of all of them.
+ * LazyAnnotator loads through here too, so one annotator loading on first use doesn't hold up another.
+ *
+ * They go into CoreNLP's shared annotator pool (StanfordCoreNLP.pool), registered with the same factories
+ * StanfordCoreNLP registers for these properties, so the StanfordCoreNLP object made right after finds
+ * them there and everything else about constructing it stays the same.
+ * StanfordCoreNLP only lets subclasses get at the pool and its getDefaultAnnotatorPool(), so SharedPool
+ * gets at the field and does the registering itself.
+ * AnnotatorPool.get() creates annotators while holding the pool's lock, so it can't be called in
+ * parallel; instead we call the registered factories ourselves and put the results in the pool.
+ * The pool doesn't expose those maps, so they're looked up reflectively.  If that fails
+ * (a different CoreNLP version), annotators are loaded with get(), one at a time, as before.
+ */
+class ModelLoader {
+	/** AnnotatorPool's private maps; null if this CoreNLP version doesn't have them */
+	static Field annotatorsField, factoriesField;
+	static {
+		try {
+			annotatorsField = AnnotatorPool.class.getDeclaredField("annotators");
+			factoriesField = AnnotatorPool.class.getDeclaredField("factories");
+			annotatorsField.setAccessible(true);
+			factoriesField.setAccessible(true);
+		} catch (NoSuchFieldException | RuntimeException e) {
+			SocketServer.log("Can't load annotators in parallel with this CoreNLP version (" + e + "); loading them one at a time");
+			annotatorsField = factoriesField = null;
+		}
+	}
+
+	/**
+	 * StanfordCoreNLP.pool is protected, so this subclass is how we get at it.  Never instantiated.
+	 * register() mirrors StanfordCoreNLP.getDefaultAnnotatorPool() in CoreNLP 3.5.2, name for name,
+	 * so the factory signatures match and the constructor keeps what we've loaded.
+	 */
+	static abstract class SharedPool extends StanfordCoreNLP {
+		static final String CUSTOM_PREFIX = "customAnnotatorClass.";
+
+		/** the shared pool, created if no pipeline has made it yet, with the factories for these properties registered */
+		static AnnotatorPool get(Properties props) {
+			synchronized (StanfordCoreNLP.class) {
+				if (pool == null) {
+					pool = new AnnotatorPool();
+				}
+				register(pool, props);
+				return pool;
+			}
+		}
+
+		/** the shared pool as it is, or null if nothing has made one yet */
+		static AnnotatorPool existing() {
+			synchronized (StanfordCoreNLP.class) {
+				return pool;
+			}
+		}
+
+		static void register(AnnotatorPool pool, Properties props) {
+			AnnotatorImplementations impl = new AnnotatorImplementations();
+			pool.register("tokenize", AnnotatorFactories.tokenize(props, impl));
+			pool.register("cleanxml", AnnotatorFactories.cleanXML(props, impl));
+			pool.register("ssplit", AnnotatorFactories.sentenceSplit(props, impl));
+			pool.register("pos", AnnotatorFactories.posTag(props, impl));
+			pool.register("lemma", AnnotatorFactories.lemma(props, impl));
+			pool.register("ner", AnnotatorFactories.nerTag(props, impl));
+			pool.register("regexner", AnnotatorFactories.regexNER(props, impl));
+			pool.register("entitymentions", AnnotatorFactories.entityMentions(props, impl));
+			pool.register("gender", AnnotatorFactories.gender(props, impl));
+			pool.register("truecase", AnnotatorFactories.truecase(props, impl));
+			pool.register("parse", AnnotatorFactories.parse(props, impl));
+			pool.register("dcoref", AnnotatorFactories.coref(props, impl));
+			pool.register("relation", AnnotatorFactories.relation(props, impl));
+			pool.register("sentiment", AnnotatorFactories.sentiment(props, impl));
+			pool.register("cdc", AnnotatorFactories.columnDataClassifier(props, impl));
+			pool.register("depparse", AnnotatorFactories.dependencies(props, impl));
+			pool.register("natlog", AnnotatorFactories.natlog(props, impl));
+			pool.register("quote", AnnotatorFactories.quote(props, impl));
+			for (String property : props.stringPropertyNames()) {
+				if (property.startsWith(CUSTOM_PREFIX)) {
+					pool.register(property.substring(CUSTOM_PREFIX.length()), customFactory(props, impl, property));
+				}
+			}
+		}
+
+		/** same create() and signature as the anonymous factory StanfordCoreNLP makes for customAnnotatorClass.NAME */
+		static AnnotatorFactory customFactory(Properties props, final AnnotatorImplementations impl, final String property) {
+			return new AnnotatorFactory(props, impl) {
+				private static final long serialVersionUID = 1L;
+
+				public Annotator create() {
+					return impl.custom(properties, property);
+				}
+
+				public String additionalSignature() {
+					StringBuilder os = new StringBuilder();
+					for (Object key : properties.keySet()) {
+						os.append(key + ":" + properties.getProperty((String) key));
+					}
+					return os.toString();
+				}
+			};
+		}
+	}
+
+	/** loads the named annotators that the pool doesn't have yet, in parallel; logs how long each took. */
+	static void preload(final Properties props, List<String> names) {
+		if (annotatorsField == null) {
+			return;
+		}
+		names = notLoaded(props, names);
+		if (names.size() < 2) {
+			return;
+		}
+		ExecutorService loaders = Executors.newFixedThreadPool(Math.min(names.size(), Runtime.getRuntime().availableProcessors()));
+		List<Future<Long>> loadMillis = Lists.newArrayList();
+		long start = System.currentTimeMillis();
+		for (final String name : names) {
+			loadMillis.add(loaders.submit(new Callable<Long>() {
+				public Long call() {
+					long t0 = System.currentTimeMillis();
+					load(props, name);
+					return System.currentTimeMillis() - t0;
+				}
+			}));
+		}
+		loaders.shutdown();
+		long sequentialMillis = 0;
+		try {
+			for (int i=0; i < names.size(); i++) {
+				long millis = loadMillis.get(i).get();
+				sequentialMillis += millis;
+				SocketServer.log(String.format("Loaded annotator %s in %.1f sec", names.get(i), millis / 1e3));
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			// the same failure the constructor would have had, e.g. a missing model
+			Throwable cause = e.getCause();
+			throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+		}
+		SocketServer.log(String.format("Loaded %d annotators in parallel in %.1f sec (%.1f sec of loading in all)",
+				names.size(), (System.currentTimeMillis() - start) / 1e3, sequentialMillis / 1e3));
+	}
+
+	/** the names the pool doesn't have an annotator for yet, without duplicates */
+	@SuppressWarnings("unchecked")
+	static List<String> notLoaded(Properties props, List<String> names) {
+		AnnotatorPool pool = SharedPool.get(props);
+		List<String> missing = Lists.newArrayList();
+		synchronized (pool) {
+			try {
+				Map<String,Annotator> annotators = (Map<String,Annotator>) annotatorsField.get(pool);
+				for (String name : names) {
+					if (!annotators.containsKey(name) && !missing.contains(name)) missing.add(name);
+				}
+			} catch (IllegalAccessException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return missing;
+	}
+
+	/**
+	 * the annotator `name` for these properties: the pool's if it has one, otherwise made by the pool's factory
+	 * without holding the pool's lock, then put in the pool.  throws IllegalArgumentException for an unknown name.
+	 */
+	@SuppressWarnings("unchecked")
+	static Annotator load(Properties props, String name) {
+		AnnotatorPool pool;
+		Map<String,Annotator> annotators;
+		Map<String,AnnotatorFactory> factories;
+		AnnotatorFactory factory;
+		// registering and looking up in one go, so a registration for other properties can't come in between
+		synchronized (StanfordCoreNLP.class) {
+			pool = SharedPool.get(props);
+			if (annotatorsField == null) {
+				return pool.get(name);
+			}
+			try {
+				annotators = (Map<String,Annotator>) annotatorsField.get(pool);
+				factories = (Map<String,AnnotatorFactory>) factoriesField.get(pool);
+				synchronized (pool) {
+					Annotator annotator = annotators.get(name);
+					if (annotator != null) {
+						return annotator;
+					}
+					factory = factories.get(name);
+				}
+			} catch (IllegalAccessException e) {
+				return pool.get(name);
+			}
+			if (factory == null) {
+				// not one of the defaults; let the pool sort it out
+				return pool.get(name);
+			}
+		}
+		Annotator annotator = factory.create();
+		synchronized (pool) {
+			// it's ours either way; it only goes in the pool if the pool is still set up for these properties
+			AnnotatorFactory current = factories.get(name);
+			if (current == null || !current.signature().equals(factory.signature())) {
+				return annotator;
+			}
+			// some other thread may have needed it too, and got there first
+			if (annotators.containsKey(name)) {
+				return annotators.get(name);
+			}
+			annotators.put(name, annotator);
+		}
+		return annotator;
+	}
+
+	/**
+	 * takes every annotator out of the shared pool except the ones in `keep` (by identity), so the models
+	 * no pipeline uses any more can be garbage collected; a pipeline that needs one again loads it again.
+	 * Returns how many were taken out.  Does nothing if we can't get at the pool's map (see annotatorsField).
+	 */
+	@SuppressWarnings("unchecked")
+	static int releaseAllBut(Collection<Annotator> keep) {
+		AnnotatorPool pool = SharedPool.existing();
+		if (annotatorsField == null || pool == null) {
+			return 0;
+		}
+		Set<Annotator> kept = Sets.newIdentityHashSet();
+		kept.addAll(keep);
+		int released = 0;
+		synchronized (pool) {
+			try {
+				Map<String,Annotator> annotators = (Map<String,Annotator>) annotatorsField.get(pool);
+				for (Iterator<Annotator> it = annotators.values().iterator(); it.hasNext(); ) {
+					if (!kept.contains(it.next())) {
+						it.remove();
+						released++;
+					}
+				}
+			} catch (IllegalAccessException e) {
+				return 0;
+			}
+		}
+		return released;
+	}
+}
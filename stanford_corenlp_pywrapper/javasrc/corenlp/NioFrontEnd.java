@@ -0,0 +1,466 @@
+package corenlp;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.codehaus.jackson.JsonNode;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Non-blocking socket front end for SocketServer.
+ *
+ * A single selector thread accepts connections, reads whatever bytes are available,
+ * and cuts them into command lines.  Each complete line goes to the SocketServer's
+ * annotation workers; the worker serializes the response into buffers queued on the connection,
+ * and the selector thread writes them out when the socket is writable.
+ * A connection has at most about MAX_QUEUED_BYTES queued: a worker that gets that far ahead of its
+ * client waits for the selector to send some, so a chunked response only has that much of it in memory
+ * at a time, whatever its size.  Meanwhile the connection isn't read from, so the client can't pile up more work.
+ * A client that stops reading altogether for WRITE_STALL_MILLIS gets its connection closed, which frees the worker.
+ * So idle or slow clients (e.g. one that never sends its newline) only cost a buffer, and only hold
+ * a worker for as long as they're actually reading what it writes.
+ * The selector thread itself never waits: it writes only small answers (BUSY, draining), and when a worker
+ * is in the middle of a response on the same connection, it leaves them to that worker (see writeDeferred()).
+ *
+ * Same protocol as the blocking front end: untagged commands on a connection are run
+ * one at a time and answered in order, tagged commands are pipelined.
+ * Works for both TCP and Unix domain server channels.
+ */
+class NioFrontEnd {
+	SocketServer server;
+	Selector selector;
+	ServerSocketChannel serverChannel;
+	/** connections that workers have queued output for; the selector thread turns on OP_WRITE for them. */
+	Queue<Connection> needWrite = new ConcurrentLinkedQueue<>();
+	ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+	/** while more than this many bytes are waiting to be sent on a connection, workers wait to queue more, and it isn't read from */
+	static final long MAX_QUEUED_BYTES = 1024 * 1024;
+	/** how long a worker waits for a client that isn't reading at all before closing its connection */
+	static final long WRITE_STALL_MILLIS = 60 * 1000;
+	Thread selectorThread;
+	/**
+	 * longest command line we'll hold on to.  A client that goes over it gets a bad_request,
+	 * after the answers to what it sent before, and the connection is closed.
+	 */
+	static final int MAX_LINE_BYTES = 64 * 1024 * 1024;
+
+	/** an answer that's ready to go out without running anything: BUSY or draining */
+	static class Reply {
+		long requestId;
+		JsonNode result;
+		ConnectionOptions framing;
+
+		Reply(long requestId, JsonNode result, ConnectionOptions framing) {
+			this.requestId = requestId;
+			this.result = result;
+			this.framing = framing;
+		}
+	}
+
+	class Connection {
+		SocketChannel channel;
+		SelectionKey key;
+		/** bytes of a command line that hasn't seen its newline yet */
+		ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+		Queue<ByteBuffer> output = new ConcurrentLinkedQueue<>();
+		/** bytes in `output` */
+		AtomicLong queuedBytes = new AtomicLong();
+		/** workers waiting for queuedBytes to go down wait on this */
+		Object space = new Object();
+		/** when the selector last sent anything on it */
+		volatile long lastSent = System.currentTimeMillis();
+		/** Replies for whoever next holds responseLock to write; see writeDeferred() */
+		Queue<Reply> deferred = new ConcurrentLinkedQueue<>();
+		/** held by a worker for the whole of one response, so frames don't interleave. */
+		ReentrantLock responseLock = new ReentrantLock();
+		/** commands read but not yet answered, tagged or not. */
+		AtomicInteger inFlight = new AtomicInteger();
+		boolean inputClosed = false;
+		/** a response to send, untagged, once everything else has been answered, before closing */
+		JsonNode lastWords = null;
+		volatile boolean closed = false;
+		ConnectionOptions options = new ConnectionOptions();
+		/**
+		 * untagged commands waiting for the one before them; guarded by synchronized(this).
+		 * The connection isn't read from while there are any, so this holds at most what one read brought in.
+		 */
+		Queue<String> untaggedQueue = new ArrayDeque<>();
+		boolean untaggedRunning = false;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * queue bytes to send.  A worker waits first if the client is too far behind; the selector thread doesn't,
+		 * since it's the one that would make room, and only ever queues a few bytes itself.
+		 */
+		void enqueue(byte[] bytes, int off, int len) throws IOException {
+			if (Thread.currentThread() != selectorThread) {
+				waitForSpace();
+			}
+			if (closed) {
+				throw new IOException("connection closed");
+			}
+			byte[] copy = new byte[len];
+			System.arraycopy(bytes, off, copy, 0, len);
+			queuedBytes.addAndGet(len);
+			output.add(ByteBuffer.wrap(copy));
+			needWrite.add(this);
+			selector.wakeup();
+		}
+
+		void waitForSpace() throws IOException {
+			long start = System.currentTimeMillis();
+			synchronized (space) {
+				while (queuedBytes.get() > MAX_QUEUED_BYTES && !closed) {
+					if (System.currentTimeMillis() - Math.max(start, lastSent) > WRITE_STALL_MILLIS) {
+						// have the selector thread close it; we give up on this response either way.
+						closed = true;
+						needWrite.add(this);
+						selector.wakeup();
+						throw new IOException("client hasn't read anything for " + WRITE_STALL_MILLIS + " ms");
+					}
+					try {
+						space.wait(WRITE_STALL_MILLIS);
+					} catch (InterruptedException e) {
+						throw new IOException(e);
+					}
+				}
+			}
+		}
+
+		/** selector thread: some output went out */
+		void sent() {
+			lastSent = System.currentTimeMillis();
+			if (queuedBytes.get() <= MAX_QUEUED_BYTES || closed) {
+				synchronized (space) {
+					space.notifyAll();
+				}
+			}
+		}
+
+		/** called from worker threads after a response has been queued */
+		void finished() {
+			inFlight.decrementAndGet();
+			// always go through the selector, even if the connection is closing,
+			// so it gets a chance to notice it's done.
+			needWrite.add(this);
+			selector.wakeup();
+		}
+
+		OutputStream outputStream() {
+			return new OutputStream() {
+				public void write(int b) throws IOException {
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+				public void write(byte[] bytes, int off, int len) throws IOException {
+					enqueue(bytes, off, len);
+				}
+			};
+		}
+	}
+
+	NioFrontEnd(SocketServer server, ServerSocketChannel serverChannel) {
+		this.server = server;
+		this.serverChannel = serverChannel;
+	}
+
+	void run() throws IOException {
+		selectorThread = Thread.currentThread();
+		selector = Selector.open();
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		SocketServer.log("Started non-blocking socket server on " + serverChannel.getLocalAddress());
+
+		while (true) {
+			selector.select();
+			Connection conn;
+			while ( (conn=needWrite.poll()) != null) {
+				if (conn.closed) {
+					// a worker gave up on it (see waitForSpace())
+					close(conn);
+				} else if (conn.key.isValid()) {
+					conn.key.interestOps(conn.key.interestOps() | SelectionKey.OP_WRITE);
+					updateInterest(conn);
+				}
+			}
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				try {
+					if (key.isValid() && key.isAcceptable()) {
+						accept();
+					}
+					if (key.isValid() && key.isReadable()) {
+						read((Connection) key.attachment());
+					}
+					if (key.isValid() && key.isWritable()) {
+						write((Connection) key.attachment());
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+					if (key.attachment() != null) {
+						close((Connection) key.attachment());
+					}
+				}
+			}
+		}
+	}
+
+	void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null) return;
+		channel.configureBlocking(false);
+		if (channel.getLocalAddress() instanceof InetSocketAddress) {
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		}
+		Connection conn = new Connection(channel);
+		conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+	}
+
+	void read(Connection conn) throws IOException {
+		readBuffer.clear();
+		int n = conn.channel.read(readBuffer);
+		if (n < 0) {
+			conn.inputClosed = true;
+			conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_READ);
+			closeIfDone(conn);
+			return;
+		}
+		byte[] bytes = readBuffer.array();
+		int lineStart = 0;
+		for (int i=0; i < n; i++) {
+			if (bytes[i] != '\n') continue;
+			if (tooLong(conn, i - lineStart)) return;
+			conn.partialLine.write(bytes, lineStart, i - lineStart);
+			String line = conn.partialLine.toString("UTF-8");
+			conn.partialLine.reset();
+			lineStart = i+1;
+			// same line ending handling as BufferedReader.readLine()
+			if (line.endsWith("\r")) {
+				line = line.substring(0, line.length()-1);
+			}
+			dispatch(conn, line);
+		}
+		if (tooLong(conn, n - lineStart)) return;
+		conn.partialLine.write(bytes, lineStart, n - lineStart);
+		updateInterest(conn);
+	}
+
+	/** if adding `more` bytes to the line puts it over MAX_LINE_BYTES, stop reading and say why once the rest is answered */
+	boolean tooLong(Connection conn, int more) {
+		if ((long) conn.partialLine.size() + more <= MAX_LINE_BYTES) {
+			return false;
+		}
+		conn.partialLine = new ByteArrayOutputStream();
+		conn.inputClosed = true;
+		conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_READ);
+		conn.lastWords = SocketServer.errorResponse("bad_request",
+				"command line longer than " + MAX_LINE_BYTES + " bytes; closing the connection", false);
+		closeIfDone(conn);
+		return true;
+	}
+
+	void write(Connection conn) throws IOException {
+		ByteBuffer buf;
+		while ( (buf=conn.output.peek()) != null) {
+			conn.channel.write(buf);
+			if (buf.hasRemaining()) {
+				// socket buffer is full; wait for the next OP_WRITE.
+				conn.sent();
+				updateInterest(conn);
+				return;
+			}
+			conn.output.poll();
+			conn.queuedBytes.addAndGet(-buf.capacity());
+		}
+		conn.sent();
+		updateInterest(conn);
+		conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_WRITE);
+		closeIfDone(conn);
+	}
+
+	/**
+	 * stop reading commands from a client that has more than MAX_QUEUED_BYTES of
+	 * responses waiting for it, or untagged commands waiting their turn,
+	 * and start again once it's read them down or they've started.
+	 */
+	void updateInterest(Connection conn) {
+		boolean waiting;
+		synchronized (conn) {
+			waiting = !conn.untaggedQueue.isEmpty();
+		}
+		boolean reading = !conn.inputClosed && !waiting && conn.queuedBytes.get() <= MAX_QUEUED_BYTES;
+		int ops = conn.key.interestOps();
+		conn.key.interestOps(reading ? ops | SelectionKey.OP_READ : ops & ~SelectionKey.OP_READ);
+	}
+
+	void closeIfDone(Connection conn) {
+		if (conn.inputClosed && conn.inFlight.get()==0 && conn.output.isEmpty()) {
+			if (conn.lastWords == null) {
+				close(conn);
+				return;
+			}
+			// nothing else is writing to it now; close once this has gone out.
+			JsonNode last = conn.lastWords;
+			conn.lastWords = null;
+			conn.responseLock.lock();
+			try {
+				writeResponse(conn, -1, last, conn.options.snapshot());
+			} finally {
+				conn.responseLock.unlock();
+			}
+		}
+	}
+
+	void close(Connection conn) {
+		conn.key.cancel();
+		try { conn.channel.close(); } catch (IOException e) { }
+		// wake up any worker waiting to queue more output; it'll find the connection closed
+		conn.closed = true;
+		conn.sent();
+	}
+
+	void dispatch(final Connection conn, String commandstr) {
+		conn.inFlight.incrementAndGet();
+		server.unanswered.incrementAndGet();
+		final long requestId = SocketServer.requestIdOf(commandstr);
+		if (requestId >= 0) {
+			submit(conn, requestId, commandstr);
+			return;
+		}
+		synchronized (conn) {
+			if (conn.untaggedRunning) {
+				conn.untaggedQueue.add(commandstr);
+				return;
+			}
+			conn.untaggedRunning = true;
+		}
+		submit(conn, requestId, commandstr);
+	}
+
+	/**
+	 * run a command on a worker, or answer BUSY if the server's queue is full.
+	 * when an untagged one is answered, start the next untagged one from that connection.
+	 */
+	void submit(final Connection conn, final long requestId, final String commandstr) {
+		long id = requestId;
+		String command = commandstr;
+		while (command != null) {
+			final JsonNode rejection = server.admit();
+			if (rejection == null) {
+				schedule(conn, id, command);
+				return;
+			}
+			conn.deferred.add(new Reply(id, rejection, conn.options.snapshot()));
+			if (!writeDeferred(conn)) return;
+			id = -1;
+			command = nextUntagged(conn);
+		}
+	}
+
+	/**
+	 * writes conn's deferred Replies, unless someone else is writing to it: then that thread will, after its own
+	 * response (everyone who lets go of responseLock calls this).  So this never waits, on the selector thread or
+	 * for a worker that's waiting for its client.  true if one of the Replies written was to an untagged command,
+	 * so the caller should start the next untagged one.
+	 */
+	boolean writeDeferred(Connection conn) {
+		boolean untagged = false;
+		while (!conn.deferred.isEmpty() && conn.responseLock.tryLock()) {
+			List<Reply> written = Lists.newArrayList();
+			try {
+				Reply reply;
+				while ( (reply=conn.deferred.poll()) != null) {
+					writeResponse(conn, reply.requestId, reply.result, reply.framing);
+					written.add(reply);
+				}
+			} finally {
+				conn.responseLock.unlock();
+			}
+			for (Reply reply : written) {
+				untagged |= answered(conn, reply.requestId);
+			}
+		}
+		return untagged;
+	}
+
+	void schedule(final Connection conn, final long requestId, final String commandstr) {
+		final long admitted = System.nanoTime();
+		server.schedule(new ScheduledCommand(server.priorityOf(commandstr), conn.options) {
+			public void run() {
+				JsonNode result = server.executeCommand(commandstr, snapshot, admitted);
+				respond(conn, requestId, result, snapshot);
+			}
+		});
+	}
+
+	void respond(Connection conn, long requestId, JsonNode result, ConnectionOptions framing) {
+		conn.responseLock.lock();
+		try {
+			writeResponse(conn, requestId, result, framing);
+		} finally {
+			conn.responseLock.unlock();
+		}
+		boolean untagged = answered(conn, requestId);
+		untagged |= writeDeferred(conn);
+		if (!untagged) return;
+		String next = nextUntagged(conn);
+		if (next != null) {
+			submit(conn, -1, next);
+		}
+	}
+
+	/** call with conn.responseLock held */
+	void writeResponse(Connection conn, long requestId, JsonNode result, ConnectionOptions framing) {
+		try {
+			OutputStream out = new BufferedOutputStream(conn.outputStream(), ChunkedOutputStream.CHUNK_SIZE);
+			server.writeResponse(requestId, result, out, framing);
+			out.flush();
+		} catch (IOException e) {
+			// client went away; nothing to send it to.
+		}
+	}
+
+	/** bookkeeping once a response is queued.  true if it was untagged, so the next untagged one can go. */
+	boolean answered(Connection conn, long requestId) {
+		server.unanswered.decrementAndGet();
+		conn.finished();
+		return requestId < 0;
+	}
+
+	/** the next untagged command waiting on this connection, or null (and none running) if there isn't one */
+	String nextUntagged(Connection conn) {
+		synchronized (conn) {
+			String next = conn.untaggedQueue.poll();
+			if (next == null) {
+				conn.untaggedRunning = false;
+			} else if (conn.untaggedQueue.isEmpty()) {
+				// have the selector start reading from it again
+				needWrite.add(conn);
+				selector.wakeup();
+			}
+			return next;
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package corenlp;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * How a result is written out: its encoding and its layout.  Set for a connection with SETOPTS
+ * (see ConnectionOptions), and overridden for one PARSEDOC or PARSEDOCS by the same keys in its object:
+ *     PARSEDOC \t {"text": "Hello world.", "format": "smile", "layout": "columnar", "typed_offsets": true}
+ *
+ * "layout" is "rows" (the default), an object per sentence:
+ *     {"sentences": [{"tokens": [...], "char_offsets": [[0,5], ...], "pos": [...], ...}, ...], "entities": ...}
+ * or "columnar", one flat array per field for the whole document, plus where each sentence starts:
+ *     {"sentence_offsets": [0, 3, 8], "tokens": [...], "char_begin": [...], "char_end": [...], "pos": [...], ...}
+ * Sentence i is tokens sentence_offsets[i] up to sentence_offsets[i+1].  Fields that aren't per token are
+ * per sentence ("parse"), per dependency ("deps_cc" and "deps_basic", each an object of equally long
+ * "sentence", "rel", "gov" and "dep" arrays, gov and dep indexing into the sentence as before), or lists of
+ * objects for the whole document ("entitymentions", "entities").  See OutputPlan.writeColumns().
+ *
+ * With "typed_offsets" (columnar only), sentence_offsets, char_begin and char_end are binary data
+ * instead of arrays: little-endian 32-bit ints, ready for numpy.frombuffer(..., '<i4').
+ * In JSON, binary data comes base64-encoded; in Smile, as is.
+ */
+class OutputOptions {
+	static final String ROWS = "rows";
+	static final String COLUMNAR = "columnar";
+
+	/** SerializedJson.JSON or SerializedJson.SMILE */
+	String format = SerializedJson.JSON;
+	/** ROWS or COLUMNAR */
+	String layout = ROWS;
+	boolean typedOffsets = false;
+
+	boolean columnar() {
+		return layout.equals(COLUMNAR);
+	}
+
+	OutputOptions copy() {
+		OutputOptions o = new OutputOptions();
+		o.format = format;
+		o.layout = layout;
+		o.typedOffsets = typedOffsets;
+		return o;
+	}
+
+	/** these options, with whichever of them `settings` (a SETOPTS or request object) has */
+	OutputOptions with(JsonNode settings) {
+		OutputOptions o = copy();
+		if (settings.has("format")) {
+			o.format = SerializedJson.checkFormat(settings.get("format").asText());
+		}
+		if (settings.has("layout")) {
+			String l = settings.get("layout").asText();
+			if (!l.equals(ROWS) && !l.equals(COLUMNAR)) {
+				throw new SocketServer.BadRequestException("layout should be rows or columnar");
+			}
+			o.layout = l;
+		}
+		if (settings.has("typed_offsets")) {
+			o.typedOffsets = settings.get("typed_offsets").asBoolean();
+		}
+		return o;
+	}
+
+	void addTo(ObjectNode o) {
+		o.put("format", format);
+		o.put("layout", layout);
+		o.put("typed_offsets", typedOffsets);
+	}
+}
@@ -0,0 +1,487 @@
+package corenlp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.io.SerializedString;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
+
+import edu.stanford.nlp.dcoref.CorefChain;
+import edu.stanford.nlp.dcoref.CorefCoreAnnotations.CorefChainAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.CharacterOffsetBeginAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.CharacterOffsetEndAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.EntityTypeAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.LemmaAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.MentionsAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.NamedEntityTagAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.NormalizedNamedEntityTagAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.PartOfSpeechAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.SentenceIndexAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.TokenBeginAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.TokenEndAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.TokensAnnotation;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.ling.IndexedWord;
+import edu.stanford.nlp.pipeline.Annotation;
+// paths for stanford 3.2.0.  before that, it's e.s.nlp.trees.semgraph.SemanticGraph
+import edu.stanford.nlp.semgraph.SemanticGraph;
+import edu.stanford.nlp.semgraph.SemanticGraphCoreAnnotations.BasicDependenciesAnnotation;
+import edu.stanford.nlp.semgraph.SemanticGraphCoreAnnotations.CollapsedCCProcessedDependenciesAnnotation;
+import edu.stanford.nlp.semgraph.SemanticGraphEdge;
+import edu.stanford.nlp.time.TimeAnnotations.TimexAnnotation;
+import edu.stanford.nlp.trees.TreeCoreAnnotations;
+import edu.stanford.nlp.util.CoreMap;
+
+/**
+ * What JsonPipeline writes for each document, worked out once from the annotators when the pipeline
+ * is initialized, so writing a sentence doesn't look at annotator names at all: the sentence object's
+ * fields in output order, with their keys already encoded, and whether there are coref entities.
+ * A field that more than one annotator gives (ner and regexner both give "ner"; parse and depparse
+ * both give the dependencies) is written once.
+ *
+ * An object's keys come out in the order a HashMap of them iterates over them (see hashMapOrder()),
+ * which is the order the output has always had, from when sentences were built as HashMaps.
+ * The columnar layout (see OutputOptions) has its fields in the same order.
+ * A field's key is its name in lower case.
+ */
+class OutputPlan {
+	/** a field of each sentence object */
+	enum SentenceField {
+		TOKENS, CHAR_OFFSETS, POS, LEMMAS, NER, NORMNER, PARSE, DEPS_CC, DEPS_BASIC, ENTITYMENTIONS;
+		final SerializedString key = key(this);
+	}
+	/** a field of an entity mention; normalized and timex_xml only when it has them */
+	enum MentionField {
+		TOKSPAN, CHARSPAN, SENTENCE, TYPE, NORMALIZED, TIMEX_XML;
+		final SerializedString key = key(this);
+	}
+	/** a field of a coref mention; representative only on the chain's representative mention */
+	enum CorefMentionField {
+		SENTENCE, TOKSPAN_IN_SENTENCE, HEAD, GENDER, ANIMACY, NUMBER, MENTIONTYPE, MENTIONID, REPRESENTATIVE;
+		final SerializedString key = key(this);
+	}
+
+	static final List<MentionField> MENTION_FIELDS = hashMapOrder(MentionField.values());
+	static final List<CorefMentionField> COREF_MENTION_FIELDS = hashMapOrder(CorefMentionField.values());
+	static final SerializedString MENTIONS = new SerializedString("mentions");
+	static final SerializedString ENTITYID = new SerializedString("entityid");
+	/** keys only the columnar layout has */
+	static final SerializedString SENTENCE_OFFSETS = new SerializedString("sentence_offsets");
+	static final SerializedString CHAR_BEGIN = new SerializedString("char_begin");
+	static final SerializedString CHAR_END = new SerializedString("char_end");
+	static final SerializedString SENTENCE = new SerializedString("sentence");
+	static final SerializedString REL = new SerializedString("rel");
+	static final SerializedString GOV = new SerializedString("gov");
+	static final SerializedString DEP = new SerializedString("dep");
+
+	final SentenceField[] sentenceFields;
+	/** whether the document gets an "entities" list (dcoref) */
+	final boolean entities;
+
+	OutputPlan(List<SentenceField> sentenceFields, boolean entities) {
+		this.sentenceFields = sentenceFields.toArray(new SentenceField[sentenceFields.size()]);
+		this.entities = entities;
+	}
+
+	/** throws for an annotator we don't have output for */
+	static OutputPlan forAnnotators(String[] annotators) {
+		List<SentenceField> fields = Lists.newArrayList(SentenceField.TOKENS, SentenceField.CHAR_OFFSETS);
+		boolean entities = false;
+		for (String annotator : annotators) {
+			fields.addAll(fieldsFor(annotator));
+			entities |= annotator.equals("dcoref");
+		}
+		return new OutputPlan(hashMapOrder(fields.toArray(new SentenceField[fields.size()])), entities);
+	}
+
+	/** the fields an annotator adds to each sentence object.  annotator is a stanford corenlp notion. */
+	static List<SentenceField> fieldsFor(String annotator) {
+		switch(annotator) {
+		case "tokenize":
+		case "cleanxml":
+		case "ssplit":
+			return ImmutableList.of();
+		case "pos":
+			return ImmutableList.of(SentenceField.POS);
+		case "lemma":
+			return ImmutableList.of(SentenceField.LEMMAS);
+		case "ner":
+			return ImmutableList.of(SentenceField.NER, SentenceField.NORMNER);
+		case "regexner":
+			return ImmutableList.of(SentenceField.NER);
+		case "sentiment": throw new RuntimeException("TODO");
+		case "truecase": throw new RuntimeException("TODO");
+		case "parse":
+			return ImmutableList.of(SentenceField.PARSE, SentenceField.DEPS_CC, SentenceField.DEPS_BASIC);
+		case "depparse":
+			return ImmutableList.of(SentenceField.DEPS_CC, SentenceField.DEPS_BASIC);
+		case "dcoref":
+			return ImmutableList.of();
+		case "relation": throw new RuntimeException("TODO");
+		case "natlog": throw new RuntimeException("TODO");
+		case "quote": throw new RuntimeException("TODO");
+		case "entitymentions":
+			return ImmutableList.of(SentenceField.ENTITYMENTIONS);
+		default:
+			throw new RuntimeException("don't know how to handle annotator " + annotator);
+		}
+	}
+
+	static SerializedString key(Enum<?> field) {
+		return new SerializedString(field.name().toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * the fields, without duplicates, in the order a HashMap with their keys iterates over them if they're
+	 * put in this order.  that's also the order for any subset of them, as long as there are few enough
+	 * that the map never resizes.
+	 */
+	@SafeVarargs
+	static <F extends Enum<F>> List<F> hashMapOrder(F... fields) {
+		Map<String,F> m = Maps.newHashMap();
+		for (F field : fields) {
+			if (!m.containsKey(key(field).getValue())) m.put(key(field).getValue(), field);
+		}
+		assert m.size() <= 12 : "the map would have resized";
+		return ImmutableList.copyOf(m.values());
+	}
+
+	/** a sentence object, in the rows layout */
+	void writeSentence(JsonGenerator g, CoreMap sentence, List<CoreLabel> tokens) throws IOException {
+		g.writeStartObject();
+		for (SentenceField field : sentenceFields) {
+			g.writeFieldName(field.key);
+			if (field == SentenceField.PARSE) {
+				writeValues(g, field, sentence, tokens);
+			} else {
+				g.writeStartArray();
+				writeValues(g, field, sentence, tokens);
+				g.writeEndArray();
+			}
+		}
+		g.writeEndObject();
+	}
+
+	/**
+	 * the fields of a document in the columnar layout (see OutputOptions): sentence_offsets, then
+	 * each sentence field for all the sentences together.
+	 */
+	void writeColumns(JsonGenerator g, List<CoreMap> sentences, boolean typedOffsets) throws IOException {
+		int[] sentenceOffsets = new int[sentences.size() + 1];
+		for (int s=0; s < sentences.size(); s++) {
+			sentenceOffsets[s+1] = sentenceOffsets[s] + sentences.get(s).get(TokensAnnotation.class).size();
+		}
+		g.writeFieldName(SENTENCE_OFFSETS);
+		writeInts(g, sentenceOffsets, typedOffsets);
+		for (SentenceField field : sentenceFields) {
+			switch (field) {
+			case CHAR_OFFSETS:
+				int[] begins = new int[sentenceOffsets[sentences.size()]];
+				int[] ends = new int[begins.length];
+				int i = 0;
+				for (CoreMap sentence : sentences) {
+					for (CoreLabel token : sentence.get(TokensAnnotation.class)) {
+						begins[i] = token.beginPosition();
+						ends[i++] = token.endPosition();
+					}
+				}
+				g.writeFieldName(CHAR_BEGIN);
+				writeInts(g, begins, typedOffsets);
+				g.writeFieldName(CHAR_END);
+				writeInts(g, ends, typedOffsets);
+				break;
+			case DEPS_CC:
+				g.writeFieldName(field.key);
+				writeDepColumns(g, sentences, CollapsedCCProcessedDependenciesAnnotation.class);
+				break;
+			case DEPS_BASIC:
+				g.writeFieldName(field.key);
+				writeDepColumns(g, sentences, BasicDependenciesAnnotation.class);
+				break;
+			default:
+				g.writeFieldName(field.key);
+				g.writeStartArray();
+				for (CoreMap sentence : sentences) {
+					writeValues(g, field, sentence, sentence.get(TokensAnnotation.class));
+				}
+				g.writeEndArray();
+			}
+		}
+	}
+
+	/**
+	 * a sentence's values for a field, one per token (tokens, char_offsets, pos, ...), per dependency,
+	 * or per entity mention, without the array around them; or its one parse tree.
+	 */
+	void writeValues(JsonGenerator g, SentenceField field, CoreMap sentence, List<CoreLabel> tokens) throws IOException {
+		switch (field) {
+		case TOKENS:
+			for (CoreLabel token : tokens) {
+				writeString(g, token.value());
+			}
+			break;
+		case CHAR_OFFSETS:
+			for (CoreLabel token : tokens) {
+				writePair(g, token.beginPosition(), token.endPosition());
+			}
+			break;
+		case POS:
+			writeTokenAnno(g, tokens, PartOfSpeechAnnotation.class);
+			break;
+		case LEMMAS:
+			writeTokenAnno(g, tokens, LemmaAnnotation.class);
+			break;
+		case NER:
+			writeTokenAnno(g, tokens, NamedEntityTagAnnotation.class);
+			break;
+		case NORMNER:
+			writeTokenAnno(g, tokens, NormalizedNamedEntityTagAnnotation.class);
+			break;
+		case PARSE:
+			g.writeString(sentence.get(TreeCoreAnnotations.TreeAnnotation.class).toString());
+			break;
+		case DEPS_CC:
+			writeDeps(g, sentence.get(CollapsedCCProcessedDependenciesAnnotation.class));
+			break;
+		case DEPS_BASIC:
+			writeDeps(g, sentence.get(BasicDependenciesAnnotation.class));
+			break;
+		case ENTITYMENTIONS:
+			writeEntityMentions(g, sentence);
+			break;
+		}
+	}
+
+	static void writeString(JsonGenerator g, String s) throws IOException {
+		if (s == null) {
+			g.writeNull();
+		} else {
+			g.writeString(s);
+		}
+	}
+
+	static void writePair(JsonGenerator g, int first, int second) throws IOException {
+		g.writeStartArray();
+		g.writeNumber(first);
+		g.writeNumber(second);
+		g.writeEndArray();
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	static void writeTokenAnno(JsonGenerator g, List<CoreLabel> tokens, Class annoClass) throws IOException {
+		for (CoreLabel token : tokens) {
+			writeString(g, token.getString(annoClass));
+		}
+	}
+
+	static void writeEntityMentions(JsonGenerator g, CoreMap sentence) throws IOException {
+        List<CoreMap> coreMentions = sentence.get(MentionsAnnotation.class);
+        /* trying to figure out the keys in each mention. here's a printout from one.
+MENTION August 2014
+class edu.stanford.nlp.ling.CoreAnnotations$TextAnnotation	August 2014
+class edu.stanford.nlp.ling.CoreAnnotations$CharacterOffsetBeginAnnotation	3
+class edu.stanford.nlp.ling.CoreAnnotations$CharacterOffsetEndAnnotation	14
+class edu.stanford.nlp.ling.CoreAnnotations$TokensAnnotation	[August-2, 2014-3]
+class edu.stanford.nlp.ling.CoreAnnotations$TokenBeginAnnotation	1
+class edu.stanford.nlp.ling.CoreAnnotations$TokenEndAnnotation	3
+class edu.stanford.nlp.ling.CoreAnnotations$NamedEntityTagAnnotation	DATE
+class edu.stanford.nlp.ling.CoreAnnotations$NormalizedNamedEntityTagAnnotation	2014-08
+class edu.stanford.nlp.ling.CoreAnnotations$EntityTypeAnnotation	DATE
+class edu.stanford.nlp.ling.CoreAnnotations$SentenceIndexAnnotation	0
+class edu.stanford.nlp.time.TimeAnnotations$TimexAnnotation	<TIMEX3 tid="t1" type="DATE" value="2014-08">August 2014</TIMEX3>
+MENTION Barack Obama
+class edu.stanford.nlp.ling.CoreAnnotations$TextAnnotation	Barack Obama
+class edu.stanford.nlp.ling.CoreAnnotations$CharacterOffsetBeginAnnotation	17
+class edu.stanford.nlp.ling.CoreAnnotations$CharacterOffsetEndAnnotation	29
+class edu.stanford.nlp.ling.CoreAnnotations$TokensAnnotation	[Barack-5, Obama-6]
+class edu.stanford.nlp.ling.CoreAnnotations$TokenBeginAnnotation	4
+class edu.stanford.nlp.ling.CoreAnnotations$TokenEndAnnotation	6
+class edu.stanford.nlp.ling.CoreAnnotations$NamedEntityTagAnnotation	PERSON
+class edu.stanford.nlp.ling.CoreAnnotations$EntityTypeAnnotation	PERSON
+class edu.stanford.nlp.ling.CoreAnnotations$SentenceIndexAnnotation	0
+MENTION Paris
+class edu.stanford.nlp.ling.CoreAnnotations$TextAnnotation	Paris
+class edu.stanford.nlp.ling.CoreAnnotations$CharacterOffsetBeginAnnotation	66
+class edu.stanford.nlp.ling.CoreAnnotations$CharacterOffsetEndAnnotation	71
+class edu.stanford.nlp.ling.CoreAnnotations$TokensAnnotation	[Paris-5]
+class edu.stanford.nlp.ling.CoreAnnotations$TokenBeginAnnotation	14
+class edu.stanford.nlp.ling.CoreAnnotations$TokenEndAnnotation	15
+class edu.stanford.nlp.ling.CoreAnnotations$NamedEntityTagAnnotation	LOCATION
+class edu.stanford.nlp.ling.CoreAnnotations$EntityTypeAnnotation	LOCATION
+class edu.stanford.nlp.ling.CoreAnnotations$SentenceIndexAnnotation	1
+         */
+        for (CoreMap mention : coreMentions) {
+//            U.p("MENTION " + mention);
+//        	for (Class k : mention.keySet()) {
+//        		U.pf("%s\t%s\n", k, mention.get(k));
+//        	}
+            g.writeStartObject();
+            for (MentionField field : MENTION_FIELDS) {
+            	if (field == MentionField.NORMALIZED && !mention.containsKey(NormalizedNamedEntityTagAnnotation.class)
+            			|| field == MentionField.TIMEX_XML && !mention.containsKey(TimexAnnotation.class)) {
+            		continue;
+            	}
+            	g.writeFieldName(field.key);
+            	switch (field) {
+            	case TOKSPAN:
+            		writePair(g, mention.get(TokenBeginAnnotation.class).intValue(),
+            				mention.get(TokenEndAnnotation.class).intValue());
+            		break;
+            	case CHARSPAN:
+            		writePair(g, mention.get(CharacterOffsetBeginAnnotation.class).intValue(),
+            				mention.get(CharacterOffsetEndAnnotation.class).intValue());
+            		break;
+            	case SENTENCE:
+            		g.writeNumber(mention.get(SentenceIndexAnnotation.class).intValue());
+            		break;
+            	case TYPE:
+            		writeString(g, mention.get(EntityTypeAnnotation.class));
+            		break;
+            	case NORMALIZED:
+            		writeString(g, mention.get(NormalizedNamedEntityTagAnnotation.class));
+            		break;
+            	case TIMEX_XML:
+            		g.writeString(mention.get(TimexAnnotation.class).toString());
+            		break;
+            	}
+            }
+            g.writeEndObject();
+        }
+	}
+
+	/**
+	 * Since the dependencies are for each sentence, we obtain the root
+	 * and add it to the list of dependency triples.
+	 * The method is explained in the following link:
+	 * http://stackoverflow.com/questions/16300056/stanford-core-nlp-missing-roots
+	 * null if there isn't one.
+	 */
+	static IndexedWord root(SemanticGraph dependencies) {
+		try {
+			return dependencies.getFirstRoot();
+		} catch (Exception e) {
+			// This can happen: https://github.com/stanfordnlp/CoreNLP/issues/55
+			return null;
+		}
+	}
+
+	static void writeDeps(JsonGenerator g, SemanticGraph dependencies) throws IOException {
+		IndexedWord root = root(dependencies);
+		if (root != null) {
+			writeDepTriple(g, "root", -1, root.index() - 1);
+		}
+		for (SemanticGraphEdge e : dependencies.edgeIterable()) {
+			writeDepTriple(g, e.getRelation().toString(),
+					e.getGovernor().index() - 1,
+					e.getDependent().index() - 1);
+		}
+	}
+
+	/** the dependencies of all the sentences, as equally long "sentence", "rel", "gov" and "dep" arrays */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	static void writeDepColumns(JsonGenerator g, List<CoreMap> sentences, Class annoClass) throws IOException {
+		List<Integer> sents = Lists.newArrayList(), govs = Lists.newArrayList(), deps = Lists.newArrayList();
+		List<String> rels = Lists.newArrayList();
+		for (int s=0; s < sentences.size(); s++) {
+			SemanticGraph dependencies = (SemanticGraph) sentences.get(s).get(annoClass);
+			IndexedWord root = root(dependencies);
+			if (root != null) {
+				sents.add(s);
+				rels.add("root");
+				govs.add(-1);
+				deps.add(root.index() - 1);
+			}
+			for (SemanticGraphEdge e : dependencies.edgeIterable()) {
+				sents.add(s);
+				rels.add(e.getRelation().toString());
+				govs.add(e.getGovernor().index() - 1);
+				deps.add(e.getDependent().index() - 1);
+			}
+		}
+		g.writeStartObject();
+		g.writeFieldName(SENTENCE);
+		writeInts(g, Ints.toArray(sents), false);
+		g.writeFieldName(REL);
+		g.writeStartArray();
+		for (String rel : rels) {
+			g.writeString(rel);
+		}
+		g.writeEndArray();
+		g.writeFieldName(GOV);
+		writeInts(g, Ints.toArray(govs), false);
+		g.writeFieldName(DEP);
+		writeInts(g, Ints.toArray(deps), false);
+		g.writeEndObject();
+	}
+
+	/** an array of numbers, or with `typed`, binary data of little-endian 32-bit ints (see OutputOptions) */
+	static void writeInts(JsonGenerator g, int[] values, boolean typed) throws IOException {
+		if (typed) {
+			ByteBuffer bytes = ByteBuffer.allocate(4 * values.length).order(ByteOrder.LITTLE_ENDIAN);
+			bytes.asIntBuffer().put(values);
+			g.writeBinary(bytes.array());
+			return;
+		}
+		g.writeStartArray();
+		for (int value : values) {
+			g.writeNumber(value);
+		}
+		g.writeEndArray();
+	}
+
+	static void writeDepTriple(JsonGenerator g, String rel, int gov, int dep) throws IOException {
+		g.writeStartArray();
+		g.writeString(rel);
+		g.writeNumber(gov);
+		g.writeNumber(dep);
+		g.writeEndArray();
+	}
+
+	static void writeEntities(JsonGenerator g, Annotation doc) throws IOException {
+		Map<Integer, CorefChain> corefChains = doc.get(CorefChainAnnotation.class);
+//		List<CoreMap> sentences = doc.get(SentencesAnnotation.class);
+		g.writeStartArray();
+		for (CorefChain chain : corefChains.values()) {
+			g.writeStartObject();
+			g.writeFieldName(MENTIONS);
+			g.writeStartArray();
+			CorefChain.CorefMention representative = chain.getRepresentativeMention();
+			for (CorefChain.CorefMention corement : chain.getMentionsInTextualOrder()) {
+				g.writeStartObject();
+				boolean isRepresentative = representative!=null && corement.mentionID==representative.mentionID;
+				for (CorefMentionField field : COREF_MENTION_FIELDS) {
+					if (field == CorefMentionField.REPRESENTATIVE && !isRepresentative) {
+						continue;
+					}
+					g.writeFieldName(field.key);
+					switch (field) {
+					case SENTENCE: g.writeNumber(corement.sentNum-1); break;
+					case TOKSPAN_IN_SENTENCE: writePair(g, corement.startIndex-1, corement.endIndex-1); break;
+					case HEAD: g.writeNumber(corement.headIndex-1); break;
+					case GENDER: g.writeString(corement.gender.toString()); break;
+					case ANIMACY: g.writeString(corement.animacy.toString()); break;
+					case NUMBER: g.writeString(corement.number.toString()); break;
+					case MENTIONTYPE: g.writeString(corement.mentionType.toString()); break;
+					case MENTIONID: g.writeNumber(corement.mentionID); break;
+					case REPRESENTATIVE: g.writeBoolean(true); break;
+					}
+				}
+				g.writeEndObject();
+			}
+			g.writeEndArray();
+			g.writeFieldName(ENTITYID);
+			g.writeNumber(chain.getChainID());
+			g.writeEndObject();
+		}
+		g.writeEndArray();
+	}
+}
@@ -88,7 +88,7 @@ public class PipeRunner {
 
 			docid = parts.length >= 2 ? parts[0] :
 				payload !=null && payload.has("docid") ? payload.get("docid").getTextValue() :
-					"doc" + parse.numDocs;
+					"doc" + parse.numDocs.get();
 
 				assert docid != null : "inconsistent 'docid' key";
 				if (doctext == null) throw new RuntimeException("Couldn't interpret JSON payload: should be string, or else object with a 'text' field.");
@@ -97,9 +97,9 @@ public class PipeRunner {
 				U.pf("%s\t%s\n", docid, JsonUtil.toJson(outDoc));
 		}
 		
-		double elapsedSec = 1.0*(System.currentTimeMillis() - parse.startMilli) / 1000;
+		double elapsedSec = 1.0*(System.currentTimeMillis() - parse.startMilli.get()) / 1000;
 		System.err.print("\n");
-		System.err.printf("%d docs, %d tokens, %.1f tok/sec, %.1f byte/sec\n", parse.numDocs, parse.numTokens, parse.numTokens*1.0/elapsedSec, parse.numChars*1.0/elapsedSec);
+		System.err.printf("%d docs, %d tokens, %.1f tok/sec, %.1f byte/sec\n", parse.numDocs.get(), parse.numTokens.get(), parse.numTokens.get()*1.0/elapsedSec, parse.numChars.get()*1.0/elapsedSec);
 	}
 	
 	public static void main(String[] args) {
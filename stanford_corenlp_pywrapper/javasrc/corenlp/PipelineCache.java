@@ -0,0 +1,244 @@
+package corenlp;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.codehaus.jackson.JsonNode;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import edu.stanford.nlp.pipeline.Annotator;
+
+/**
+ * Pipelines for requests that ask for their own annotators or properties, e.g.
+ *     PARSEDOC \t {"text": "...", "annotators": "tokenize, ssplit, pos", "properties": {"pos.maxlen": "100"}}
+ * The request's settings go on top of the server's startup configuration, and the resulting
+ * JsonPipelines are cached by their normalized properties, least recently used first out.
+ * The startup pipeline is always there and doesn't count.
+ *
+ * Bounded by count, at most maxPipelines of them, and if a memoryBudget is given, by the estimated
+ * memory they took to build: heap growth while constructing one, which costs a full collection
+ * before and after each build, so it's off unless asked for (--pipelinememory).
+ * CoreNLP's annotator pool already hands the same annotator object to every pipeline whose settings
+ * for it agree, so e.g. the POS tagger is loaded once however many cached pipelines use it.
+ * Since the pool keeps annotators alive too, evicting a pipeline takes the annotators that no
+ * remaining pipeline (the startup one included) runs out of the pool, so their models can be collected.
+ *
+ * A request for a cached pipeline never waits: each build is a FutureTask of its own, so only
+ * requests for the pipeline being built wait for it, and other builds go on at the same time.
+ */
+class PipelineCache {
+	/**
+	 * the properties a request may set.  Only ones that change how an annotator runs, not what it loads:
+	 * no model or dictionary paths and no customAnnotatorClass.*, which would have the server read
+	 * whatever file or load whatever class a client names.
+	 */
+	static final Set<String> REQUEST_PROPERTIES = ImmutableSet.of(
+			"enforceRequirements",
+			"tokenize.whitespace", "tokenize.options", "tokenize.keepeol",
+			"clean.xmltags", "clean.sentenceendingtags", "clean.singlesentencetags", "clean.allowflawedxml",
+			"ssplit.eolonly", "ssplit.isOneSentence", "ssplit.newlineIsSentenceBreak",
+			"ssplit.boundaryTokenRegex", "ssplit.boundaryMultiTokenRegex", "ssplit.boundariesToDiscard",
+			"ssplit.htmlBoundariesToDiscard", "ssplit.tokenPatternsToDiscard",
+			"pos.maxlen",
+			"ner.useSUTime", "ner.applyNumericClassifiers",
+			"sutime.markTimeRanges", "sutime.includeRange",
+			"parse.maxlen", "parse.binaryTrees", "parse.buildgraphs");
+
+	JsonPipeline base;
+	int maxPipelines;
+	/** bytes; 0 for no memory bound */
+	long memoryBudget;
+	/** access-ordered, so iteration starts at the least recently used.  This and the two below are guarded by synchronized(this). */
+	LinkedHashMap<String,JsonPipeline> pipelines = new LinkedHashMap<>(16, 0.75f, true);
+	Map<String,Long> estimatedBytes = new LinkedHashMap<>();
+	long totalBytes = 0;
+	/** builds in progress, by key */
+	ConcurrentHashMap<String,FutureTask<JsonPipeline>> building = new ConcurrentHashMap<>();
+	/**
+	 * builds hold the read lock.  Taking annotators out of the pool needs the write lock, so it can't pull one
+	 * from under a pipeline that's picking it up; if a build is going on, it's left for the next eviction.
+	 */
+	ReentrantReadWriteLock buildLock = new ReentrantReadWriteLock();
+	boolean releasePending = false;
+
+	PipelineCache(JsonPipeline base, int maxPipelines, long memoryBudget) {
+		this.base = base;
+		this.maxPipelines = maxPipelines;
+		this.memoryBudget = memoryBudget;
+	}
+
+	/** the pipeline for a PARSEDOC-style request object: the startup one unless it has "annotators" or "properties". */
+	JsonPipeline forRequest(JsonNode request) {
+		if (!request.isObject() || (!request.has("annotators") && !request.has("properties"))) {
+			return base;
+		}
+		Properties props = new Properties();
+		props.putAll(base.props);
+		if (request.has("properties")) {
+			JsonNode overrides = request.get("properties");
+			if (!overrides.isObject()) {
+				throw new SocketServer.BadRequestException("'properties' should be a JSON object");
+			}
+			for (Iterator<String> it = overrides.getFieldNames(); it.hasNext(); ) {
+				String key = it.next();
+				if (!REQUEST_PROPERTIES.contains(key)) {
+					throw new SocketServer.BadRequestException("a request can't set the property '" + key
+							+ "'; it can set " + Joiner.on(", ").join(REQUEST_PROPERTIES));
+				}
+				props.setProperty(key, overrides.get(key).asText());
+			}
+		}
+		if (request.has("annotators")) {
+			props.setProperty("annotators", request.get("annotators").asText());
+		}
+		return get(props);
+	}
+
+	/** "key=value" lines in key order, with the annotator list spaced one way */
+	static String normalize(Properties props) {
+		TreeMap<String,String> sorted = new TreeMap<>();
+		for (String key : props.stringPropertyNames()) {
+			sorted.put(key, props.getProperty(key).trim());
+		}
+		if (sorted.containsKey("annotators")) {
+			sorted.put("annotators", Joiner.on(",").join(sorted.get("annotators").split("\\s*,\\s*")));
+		}
+		return Joiner.on("\n").withKeyValueSeparator("=").join(sorted);
+	}
+
+	JsonPipeline get(final Properties props) {
+		final String key = normalize(props);
+		if (key.equals(normalize(base.props))) {
+			return base;
+		}
+		synchronized (this) {
+			JsonPipeline p = pipelines.get(key);
+			if (p != null) {
+				return p;
+			}
+		}
+		FutureTask<JsonPipeline> build = new FutureTask<>(new Callable<JsonPipeline>() {
+			public JsonPipeline call() {
+				return build(key, props);
+			}
+		});
+		FutureTask<JsonPipeline> existing = building.putIfAbsent(key, build);
+		if (existing == null) {
+			existing = build;
+			try {
+				build.run();
+			} finally {
+				building.remove(key);
+			}
+		}
+		try {
+			return existing.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw new RuntimeException(cause);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** builds the pipeline for `key` (unless one finished building since get() looked), caches it and evicts. */
+	JsonPipeline build(String key, Properties props) {
+		JsonPipeline p;
+		long bytes = 0;
+		buildLock.readLock().lock();
+		try {
+			synchronized (this) {
+				p = pipelines.get(key);
+			}
+			if (p != null) {
+				return p;
+			}
+			long before = memoryBudget > 0 ? usedHeap() : 0;
+			p = new JsonPipeline(base, props);
+			try {
+				JsonPipeline.checkAnnotators(props);
+				p.initializeCorenlpPipeline();
+			} catch (RuntimeException e) {
+				// e.g. an unknown annotator, or a model that isn't on the classpath
+				throw new SocketServer.BadRequestException("couldn't build a pipeline for these settings: " + e);
+			}
+			if (memoryBudget > 0) {
+				bytes = Math.max(0, usedHeap() - before);
+			}
+		} finally {
+			buildLock.readLock().unlock();
+		}
+		SocketServer.log(memoryBudget > 0
+				? String.format("Built a pipeline for annotators '%s' (about %d MB)", props.getProperty("annotators"), bytes >> 20)
+				: String.format("Built a pipeline for annotators '%s'", props.getProperty("annotators")));
+		synchronized (this) {
+			pipelines.put(key, p);
+			estimatedBytes.put(key, bytes);
+			totalBytes += bytes;
+			evict(key);
+		}
+		return p;
+	}
+
+	/** drop least recently used pipelines, but never `keep`, until we're within both limits.  call with synchronized(this). */
+	void evict(String keep) {
+		Iterator<Map.Entry<String,JsonPipeline>> it = pipelines.entrySet().iterator();
+		while ( (pipelines.size() > maxPipelines || (memoryBudget > 0 && totalBytes > memoryBudget)) && it.hasNext()) {
+			String key = it.next().getKey();
+			if (key.equals(keep)) continue;
+			it.remove();
+			totalBytes -= estimatedBytes.remove(key);
+			releasePending = true;
+			SocketServer.log(String.format("Pipeline cache: %d pipeline(s)", pipelines.size())
+					+ (memoryBudget > 0 ? String.format(", about %d MB", totalBytes >> 20) : ""));
+		}
+		if (releasePending && buildLock.writeLock().tryLock()) {
+			try {
+				releaseUnused();
+			} finally {
+				buildLock.writeLock().unlock();
+			}
+		}
+	}
+
+	/** take annotators that no cached pipeline runs out of CoreNLP's pool.  call with synchronized(this) and the write lock. */
+	void releaseUnused() {
+		List<Annotator> inUse = Lists.newArrayList();
+		for (JsonPipeline p : Lists.asList(base, pipelines.values().toArray(new JsonPipeline[0]))) {
+			List<Annotator> annotators = p.annotatorObjects();
+			if (annotators == null) {
+				// can't tell what it needs, so leave the pool be
+				return;
+			}
+			inUse.addAll(annotators);
+		}
+		releasePending = false;
+		int released = ModelLoader.releaseAllBut(inUse);
+		if (released > 0) {
+			SocketServer.log(String.format("Released %d annotator(s) no cached pipeline uses", released));
+		}
+	}
+
+	/** heap in use, after asking for a collection so the difference means something */
+	static long usedHeap() {
+		System.gc();
+		Runtime rt = Runtime.getRuntime();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
@@ -0,0 +1,76 @@
+package corenlp;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A semaphore whose waiters get permits lowest priority value first (ties in arrival order),
+ * the vthreads-mode counterpart of the workers' priority queue.
+ * Uses a ReentrantLock rather than synchronized/wait(), which would pin a waiting virtual thread
+ * to its carrier; each waiter has its own Condition, so only the one whose turn it is wakes up.
+ */
+class PriorityPermits {
+	static class Waiter {
+		final long priority;
+		final long arrival;
+		final Condition turn;
+
+		Waiter(long priority, long arrival, Condition turn) {
+			this.priority = priority;
+			this.arrival = arrival;
+			this.turn = turn;
+		}
+	}
+
+	final ReentrantLock lock = new ReentrantLock();
+	int available;
+	PriorityQueue<Waiter> waiting = new PriorityQueue<>(11, new Comparator<Waiter>() {
+		public int compare(Waiter a, Waiter b) {
+			if (a.priority != b.priority) return a.priority < b.priority ? -1 : 1;
+			return a.arrival < b.arrival ? -1 : a.arrival > b.arrival ? 1 : 0;
+		}
+	});
+	long arrivals = 0;
+
+	PriorityPermits(int permits) {
+		this.available = permits;
+	}
+
+	void acquire(long priority) {
+		lock.lock();
+		try {
+			Waiter me = new Waiter(priority, arrivals++, lock.newCondition());
+			waiting.add(me);
+			while (available == 0 || waiting.peek() != me) {
+				// keeps the interrupt status, like the blocking version did
+				me.turn.awaitUninterruptibly();
+			}
+			waiting.poll();
+			available--;
+			// the next waiter may be able to go too
+			signalNext();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void release() {
+		lock.lock();
+		try {
+			available++;
+			signalNext();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** call with the lock held */
+	void signalNext() {
+		Waiter next = waiting.peek();
+		if (available > 0 && next != null) {
+			next.turn.signal();
+		}
+	}
+}
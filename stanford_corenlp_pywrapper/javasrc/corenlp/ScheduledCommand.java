@@ -0,0 +1,35 @@
+package corenlp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A command waiting in the workers' queue, which hands out work in order of `priority`,
+ * lowest first, and in arrival order for ties.
+ * SocketServer.priorityOf() makes the priority the arrival time plus a delay that grows with the
+ * estimated cost, so short documents overtake long ones, but only by a bounded amount of time:
+ * a long document still gets its turn once it's waited long enough.
+ */
+abstract class ScheduledCommand implements Runnable, Comparable<ScheduledCommand> {
+	static final AtomicLong arrivals = new AtomicLong();
+
+	long priority;
+	long sequence = arrivals.getAndIncrement();
+	/** the connection's settings when the command came in (see ConnectionOptions.snapshot()); null if it doesn't need them */
+	ConnectionOptions snapshot;
+
+	ScheduledCommand(long priority) {
+		this.priority = priority;
+	}
+
+	ScheduledCommand(long priority, ConnectionOptions connectionOptions) {
+		this.priority = priority;
+		this.snapshot = connectionOptions.snapshot();
+	}
+
+	public int compareTo(ScheduledCommand o) {
+		if (priority != o.priority) {
+			return priority < o.priority ? -1 : 1;
+		}
+		return sequence < o.sequence ? -1 : sequence > o.sequence ? 1 : 0;
+	}
+}
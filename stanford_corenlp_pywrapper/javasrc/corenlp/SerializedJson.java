@@ -0,0 +1,143 @@
+package corenlp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.smile.SmileFactory;
+
+import util.JsonUtil;
+
+import com.google.common.collect.Lists;
+
+/**
+ * A response written out as UTF-8 JSON, for a length-prefixed frame, which needs the length before
+ * the body: e.g. AnnotatedDocuments written straight from the annotations, without a JsonNode tree.
+ * The bytes are kept in fixed-size segments, so a response never needs one big array (or to be
+ * copied into a bigger one as it grows), and can be over 2GB.
+ * Chunked frames don't need one; see SocketServer.writeChunkedResultToStream().
+ *
+ * The bytes are either JSON text or Smile, Jackson's binary encoding of the same data model
+ * (see OutputOptions).  Smile starts with the header ":)\n", which JSON never does,
+ * so clients can tell them apart without knowing which one they asked for.
+ */
+class SerializedJson extends OutputStream {
+	static final int SEGMENT_SIZE = 64 * 1024;
+
+	static final String JSON = "json";
+	static final String SMILE = "smile";
+	static final ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+
+	/** JSON or SMILE */
+	final String format;
+	List<byte[]> segments = Lists.newArrayList();
+	/** bytes used in the last segment */
+	int count = SEGMENT_SIZE;
+	long size = 0;
+
+	SerializedJson() {
+		this(JSON);
+	}
+
+	SerializedJson(String format) {
+		this.format = format;
+	}
+
+	static ObjectMapper mapper(String format) {
+		return format.equals(SMILE) ? smileMapper : JsonUtil.om;
+	}
+
+	/** throws a BadRequestException unless it's JSON or SMILE */
+	static String checkFormat(String format) {
+		if (!format.equals(JSON) && !format.equals(SMILE)) {
+			throw new SocketServer.BadRequestException("format should be json or smile");
+		}
+		return format;
+	}
+
+	/** a generator that writes to `out` in this format; close it when done */
+	static JsonGenerator generator(OutputStream out, String format) throws IOException {
+		return mapper(format).getJsonFactory().createJsonGenerator(out, JsonEncoding.UTF8);
+	}
+
+	/**
+	 * `result` serialized: AnnotatedDocuments in their own format, anything else in this one.
+	 */
+	static SerializedJson of(JsonNode result, String format) throws IOException {
+		AnnotatedDocuments documents = AnnotatedDocuments.in(result);
+		if (documents != null) {
+			SerializedJson out = new SerializedJson(documents.output.format);
+			documents.writeTo(out);
+			return out;
+		}
+		SerializedJson out = new SerializedJson(format);
+		mapper(format).writeValue(out, result);
+		return out;
+	}
+
+	public void write(int b) {
+		if (count == SEGMENT_SIZE) {
+			segments.add(new byte[SEGMENT_SIZE]);
+			count = 0;
+		}
+		segments.get(segments.size()-1)[count++] = (byte) b;
+		size++;
+	}
+
+	public void write(byte[] bytes, int off, int len) {
+		while (len > 0) {
+			if (count == SEGMENT_SIZE) {
+				segments.add(new byte[SEGMENT_SIZE]);
+				count = 0;
+			}
+			int n = Math.min(len, SEGMENT_SIZE - count);
+			System.arraycopy(bytes, off, segments.get(segments.size()-1), count, n);
+			count += n;
+			off += n;
+			len -= n;
+			size += n;
+		}
+	}
+
+	long size() {
+		return size;
+	}
+
+	void writeTo(OutputStream out) throws IOException {
+		for (int i=0; i < segments.size(); i++) {
+			out.write(segments.get(i), 0, i == segments.size()-1 ? count : SEGMENT_SIZE);
+		}
+	}
+
+	byte[] toByteArray() {
+		try {
+			ByteArrayOutputStream all = new ByteArrayOutputStream((int) Math.min(size, Integer.MAX_VALUE));
+			writeTo(all);
+			return all.toByteArray();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** as JSON text, whatever the format */
+	String asString() {
+		try {
+			if (format.equals(SMILE)) {
+				return JsonUtil.om.writeValueAsString(smileMapper.readTree(toByteArray()));
+			}
+			// segments can split a character, so decode them together
+			return new String(toByteArray(), "UTF-8");
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public String toString() {
+		return asString();
+	}
+}
@@ -0,0 +1,244 @@
+package corenlp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One direction of the shared-memory transport: a single-producer, single-consumer
+ * byte ring inside a memory-mapped file, exposed as an InputStream or OutputStream
+ * so the usual command lines and response frames can go through it unchanged.
+ *
+ * Layout of a ring starting at offset `base` in the file:
+ *     base+0     head: total bytes ever written, big-endian long.  only the producer writes it.
+ *     base+64    tail: total bytes ever consumed, big-endian long.  only the consumer writes it.
+ *     base+128   data: `capacity` bytes.  stream position p lives at data + (p % capacity).
+ * Head and tail are on separate cache lines.  Frames bigger than the ring are fine;
+ * the producer just waits for the consumer to make room.
+ *
+ * The whole file (see SHM mode in SocketServer) is
+ *     0     request ring capacity (long)
+ *     8     response ring capacity (long)
+ *     16    client's process id (long), or 0 if it didn't say
+ *     24    closed (long): the client sets it to 1 when it's done with the server
+ *     64    request ring (client -> server)
+ *     64 + 128 + request capacity    response ring (server -> client)
+ * The client creates it, the same way it makes the fifo in pipe mode.
+ *
+ * The counters are what orders the data between the two processes (see RELEASE_FENCE).  The Python
+ * client has no fences, and counts on the processor keeping its stores in order and its loads in order,
+ * as x86 does; so it only offers this mode on x86 (see sockwrap.SharedMemoryRings).
+ *
+ * A ring has no end of its own, so while the server waits on one it looks every so often
+ * (see clientGone()) whether the client has closed it or its process has died.  If so, the request
+ * ring ends (read() returns -1) and writing responses fails, as stdin and the fifo would, and the
+ * server shuts down instead of waiting forever for a client that's gone.
+ */
+class SharedMemoryRing {
+	static final int HEAD = 0;
+	static final int TAIL = 64;
+	static final int DATA = 128;
+	static final int FILE_HEADER = 64;
+	static final int CLIENT_PID = 16;
+	static final int CLOSED = 24;
+	/** how many idle spins between looks at whether the client is still there */
+	static final int CHECK_CLIENT_SPINS = 1000;
+
+	/**
+	 * The other side is another process, so Java's memory model doesn't cover it, and a volatile field of ours
+	 * orders nothing for it; only fences do.  Each side publishes its counter after a release fence, so what it
+	 * did to the data before can't move after the counter, and reads the other's counter before an acquire
+	 * fence, so what it then does to the data can't move before it.  That's VarHandle.releaseFence() and
+	 * acquireFence() on Java 9+, and Unsafe.storeFence() and loadFence(), the same fences, on Java 8.
+	 */
+	static final MethodHandle RELEASE_FENCE, ACQUIRE_FENCE;
+	static {
+		MethodHandle release = null, acquire = null;
+		MethodType fence = MethodType.methodType(void.class);
+		try {
+			Class<?> varHandle = Class.forName("java.lang.invoke.VarHandle");
+			release = MethodHandles.lookup().findStatic(varHandle, "releaseFence", fence);
+			acquire = MethodHandles.lookup().findStatic(varHandle, "acquireFence", fence);
+		} catch (ReflectiveOperationException e) {
+			try {
+				Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+				Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				Object unsafe = theUnsafe.get(null);
+				release = MethodHandles.lookup().findVirtual(unsafeClass, "storeFence", fence).bindTo(unsafe);
+				acquire = MethodHandles.lookup().findVirtual(unsafeClass, "loadFence", fence).bindTo(unsafe);
+			} catch (ReflectiveOperationException | RuntimeException e2) {
+				throw new ExceptionInInitializerError(e2);
+			}
+		}
+		RELEASE_FENCE = release;
+		ACQUIRE_FENCE = acquire;
+	}
+
+	static void releaseFence() {
+		try {
+			RELEASE_FENCE.invokeExact();
+		} catch (Throwable e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	static void acquireFence() {
+		try {
+			ACQUIRE_FENCE.invokeExact();
+		} catch (Throwable e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	MappedByteBuffer map;
+	int base;
+	int capacity;
+	/** our own counter: head if we're the producer, tail if we're the consumer. */
+	long position;
+
+	SharedMemoryRing(MappedByteBuffer map, int base, int capacity) {
+		this.map = map;
+		this.base = base;
+		this.capacity = capacity;
+	}
+
+	/** maps the file and returns {request ring, response ring} */
+	static SharedMemoryRing[] open(String filename) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(filename, "rw")) {
+			MappedByteBuffer map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+			int requestCapacity = (int) map.getLong(0);
+			int responseCapacity = (int) map.getLong(8);
+			SharedMemoryRing requests = new SharedMemoryRing(map, FILE_HEADER, requestCapacity);
+			SharedMemoryRing responses = new SharedMemoryRing(map, FILE_HEADER + DATA + requestCapacity, responseCapacity);
+			requests.position = requests.tail();
+			responses.position = responses.head();
+			return new SharedMemoryRing[] { requests, responses };
+		}
+	}
+
+	long head() { return map.getLong(base + HEAD); }
+	long tail() { return map.getLong(base + TAIL); }
+
+	/** true once the client has set the closed flag, or its process isn't running any more */
+	boolean clientGone() {
+		if (map.getLong(CLOSED) != 0) {
+			return true;
+		}
+		long pid = map.getLong(CLIENT_PID);
+		return pid != 0 && !processAlive(pid);
+	}
+
+	/**
+	 * whether process `pid` is running, by ProcessHandle (Java 9+; reflectively, since we build for 8).
+	 * Without it we can't tell, and say it is, leaving just the closed flag.
+	 */
+	static boolean processAlive(long pid) {
+		try {
+			Class<?> handles = Class.forName("java.lang.ProcessHandle");
+			Object handle = handles.getMethod("of", long.class).invoke(null, pid);
+			Class<?> optional = Class.forName("java.util.Optional");
+			if (!(Boolean) optional.getMethod("isPresent").invoke(handle)) {
+				return false;
+			}
+			return (Boolean) handles.getMethod("isAlive").invoke(optional.getMethod("get").invoke(handle));
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return true;
+		}
+	}
+
+	/** spin briefly, then yield, then back off to short sleeps while the other side catches up. */
+	static void idle(int spins) {
+		if (spins < 1000) return;
+		if (spins < 2000) {
+			Thread.yield();
+			return;
+		}
+		// 50us while traffic is flowing, 1ms once the other side has gone quiet for a while.
+		LockSupport.parkNanos(spins < 20000 ? 50 * 1000 : 1000 * 1000);
+	}
+
+	/** copy between `bytes` and the ring at stream position `pos`, up to the end of the data region. */
+	int copy(long pos, byte[] bytes, int off, int len, boolean toRing) {
+		int ringOffset = (int) (pos % capacity);
+		int n = Math.min(len, capacity - ringOffset);
+		ByteBuffer view = map.duplicate();
+		view.position(base + DATA + ringOffset);
+		if (toRing) {
+			view.put(bytes, off, n);
+		} else {
+			view.get(bytes, off, n);
+		}
+		return n;
+	}
+
+	OutputStream outputStream() {
+		return new OutputStream() {
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+			public void write(byte[] bytes, int off, int len) throws IOException {
+				int spins = 0;
+				while (len > 0) {
+					long free = capacity - (position - tail());
+					// the consumer's done with the bytes it's given back before we write over them
+					acquireFence();
+					if (free == 0) {
+						if (++spins % CHECK_CLIENT_SPINS == 0 && clientGone()) {
+							throw new IOException("shared memory client has gone away");
+						}
+						idle(spins);
+						continue;
+					}
+					spins = 0;
+					int n = copy(position, bytes, off, (int) Math.min(len, free), true);
+					position += n;
+					off += n;
+					len -= n;
+					releaseFence();
+					map.putLong(base + HEAD, position);
+				}
+			}
+		};
+	}
+
+	InputStream inputStream() {
+		return new InputStream() {
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+			}
+			/** blocks until at least one byte is there; -1 once the client is gone and everything it sent has been read. */
+			public int read(byte[] bytes, int off, int len) throws IOException {
+				if (len == 0) return 0;
+				long available;
+				int spins = 0;
+				while ( (available = head() - position) == 0) {
+					// it may have sent something just before going
+					if (++spins % CHECK_CLIENT_SPINS == 0 && clientGone() && head() == position) {
+						return -1;
+					}
+					idle(spins);
+				}
+				acquireFence();
+				int n = copy(position, bytes, off, (int) Math.min(len, available), false);
+				position += n;
+				releaseFence();
+				map.putLong(base + TAIL, position);
+				return n;
+			}
+			public int available() {
+				return (int) Math.min(Integer.MAX_VALUE, head() - position);
+			}
+		};
+	}
+}
@@ -2,17 +2,41 @@
 package corenlp;
 
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
 import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 import javax.management.RuntimeErrorException;
 
 import org.codehaus.jackson.JsonGenerationException;
 import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonProcessingException;
+import org.codehaus.jackson.node.ObjectNode;
 import org.codehaus.jackson.map.JsonMappingException;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
 import util.Arr;
 import util.BasicFileIO;
@@ -24,15 +48,91 @@ import util.U;
  * 
  * this can go either over a socket or over stdin for the command, named pipe for ouput.  (well the output is jus a filename but presumably a named pipe makes the most sense)
  * 
+ * Socket connections are keep-alive: the server keeps reading commands from a connection,
+ * answering each one in order, until the client closes it.
+ * 
  * Input is a single line with two tab-separated fields, ending with a newline:
  *     PARSEDOC \t "Hello world." \n
  * first field is the command name.  second field is the text of the document as a JSON string.
  * NO NEWLINES ALLOWED IN THE TEXT DATA!  Most JSON libraries escape newlines to \n's so you should be safe.
  * 
+ * For many short documents, the batch command saves the per-request overhead:
+ *     PARSEDOCS \t ["Hello world.", "Another doc."] \n
+ * The documents are annotated in parallel, by the worker the command runs on and as many of the other
+ * --threads workers as get to them, and the response is one JSON array with a result per document, in order.
+ * A document that fails gets its error response (see errorResponse()) in its place; the rest are still there.
+ * 
  * Output is 
  * 1. big-endian 8-byte integer describing how many bytes the reponse will be.
  * 2. a big-ass JSON object of that length.
  * 
+ * After "SETOPTS \t {"chunked": true}" (see ConnectionOptions), responses on that connection are
+ * sent in chunks instead, and the length is -1 (see ChunkedOutputStream), for clients that can't
+ * hold a whole response in one buffer.  Either way there's no 2GB limit.
+ * 
+ * After "SETOPTS \t {"compression": "deflate"}", responses of 1KB or more are zlib-compressed, which
+ * is flagged in the length: bit 62 set for a plain frame, -2 instead of -1 for a chunked one.
+ * 
+ * After "SETOPTS \t {"format": "smile"}", responses are Smile instead of JSON text: the same
+ * objects in Jackson's binary encoding, about a quarter smaller for annotations.  A PARSEDOC
+ * or PARSEDOCS object can ask for it with "format" too.  Smile bodies start with ":)\n", so a
+ * client can always tell which one it got.
+ * 
+ * With "layout": "columnar" (again per connection or per request), a document comes as one flat
+ * array per field instead of an object per sentence; see OutputOptions.
+ * 
+ * SHARED MEMORY
+ * With --shm FILE, commands and responses go through a pair of ring buffers in a memory-mapped
+ * file that the client has created (layout in SharedMemoryRing), instead of stdin and a fifo.
+ * Same command lines and response frames as the other modes; clients should tag commands with
+ * a sequence number so every response carries it.
+ * The server exits once the client sets the file's closed flag or its process dies, as it would at
+ * the end of stdin.
+ * The server orders its side of the rings with fences; the Python client leans on x86's ordering,
+ * so it only does this on x86.
+ * 
+ * In pipe and shared-memory mode, tagged commands are pipelined onto --threads workers too, just
+ * like on a socket connection (see Tagged requests below), so the default transport can use all cores.
+ * 
+ * PER-REQUEST ANNOTATORS
+ * PARSEDOC's object can also have "annotators" and "properties" (an object of CoreNLP properties,
+ * only the ones in PipelineCache.REQUEST_PROPERTIES: no model paths or custom annotator classes),
+ * which go on top of the startup configuration for just this document:
+ *     PARSEDOC \t {"text": "Hello world.", "annotators": "tokenize, ssplit, pos, lemma"} \n
+ * as can a PARSEDOCS object, {"docs": [...], "annotators": ...}.  The pipelines for these are
+ * built on first use and kept in an LRU cache (see PipelineCache), bounded by
+ *     --pipelines N          (default 4)
+ *     --pipelinememory MB    (estimated from heap growth, which takes a full GC per build; off by default)
+ * 
+ * INCREMENTAL ANNOTATION
+ * A document that already went through some of the annotators can pass that result back as
+ * "annotation", and only the annotators after those are run:
+ *     PARSEDOC \t {"text": "Hello world.", "annotation": {"sentences": [...]}, "annotators": "tokenize, ssplit, pos, parse"} \n
+ * Tokens, sentences, pos, lemmas and ner carry over (see AnnotationFromJson); the text has to be
+ * exactly the one the annotation came from, and its tokens exactly what this pipeline's tokenizer
+ * makes of it, or it's a bad_request.
+ * 
+ * DEADLINES
+ * PARSEDOC also takes an object, so a document can come with its own time limit:
+ *     PARSEDOC \t {"text": "Hello world.", "timeout_ms": 5000} \n
+ * (or set a default for the connection with SETOPTS {"timeout_ms": 5000}; 0 means none.)
+ * The clock starts when a worker picks the command up.  Past the deadline the server stops
+ * annotating the document and answers {"error": "timeout", "annotator": NAME} instead, freeing
+ * the worker.  It checks after every annotator, every sentence within ner and parse, and every few
+ * sentences within pos and lemma.  The annotators that work on the whole document at once, dcoref
+ * in particular, don't stop: once one has started, it runs to the end, holding its worker past the
+ * deadline, and the answer is still the timeout.  A timed-out document is never sent back half done.
+ * PARSEDOCS doesn't take deadlines.
+ * 
+ * == Tagged requests ==
+ * 
+ * A command can also be prefixed with a client-chosen, non-negative integer request ID:
+ *     17 \t PARSEDOC \t "Hello world." \n
+ * Its response then starts with that ID as a big-endian 8-byte integer, followed by the usual
+ * length and JSON.  Tagged commands are pipelined: the server doesn't wait for one to finish before
+ * reading the next, and answers them in whatever order the workers finish them.
+ * Untagged commands are still answered in order, after running to completion.
+ * 
  * SOCKETSERVER EXAMPLE
  * in one terminal start the server with e.g.
 		java -cp "lib/*:/home/sw/corenlp/stanford-corenlp-full-2015-04-20/*" corenlp.SocketServer --server 1234 --configdict '{"annotators": "tokenize, ssplit"}' 
@@ -45,6 +145,12 @@ import util.U;
 
  * note that xxd doesnt read as far as possible so this is an incomplete view.
 
+ * UNIX DOMAIN SOCKET EXAMPLE
+ * same as the socket server, but co-located clients skip the TCP stack and there's no port to pick.
+ * Needs Java 16+ and the nio front end.
+		java -cp ... corenlp.SocketServer --unixsocket /tmp/corenlp.sock --configdict '{"annotators": "tokenize, ssplit"}' 
+		echo -e 'PARSEDOC\t"hello world."' | nc -U /tmp/corenlp.sock | xxd
+
  * PIPE OUTPUT EXAMPLE
 mkfifo out
 java -cp "lib/*:/home/sw/corenlp/stanford-corenlp-full-2015-04-20/*" corenlp.SocketServer --outpipe out --configdict '{"annotators": "tokenize, ssplit"}'
@@ -57,15 +163,104 @@ xxd < out
 0000020: 5b22 6869 222c 2274 6865 7265 225d 2c22  ["hi","there"],"
 0000030: 6368 6172 5f6f 6666 7365 7473 223a 5b5b  char_offsets":[[
 
+ * == Threading ==
+ * 
+ * In socket mode, a front end reads commands off the connections and hands them to a pool
+ * of annotation worker threads.  The pool size is set with
+ *     --threads N
+ * (default 1, which behaves like the old one-document-at-a-time server.)
+ * The front end is chosen with
+ *     --frontend nio       one selector thread for all connections (see NioFrontEnd); the default
+ *     --frontend threads   one blocking reader thread per open connection
+ *     --frontend vthreads  a virtual thread per connection (Java 21+) that runs its own commands,
+ *                          with at most N of them annotating at once instead of a worker pool
+ * All workers share the same JsonPipeline/StanfordCoreNLP object.  Most of CoreNLP's annotators are
+ * safe to call from several threads at once, but dcoref keeps the document it's working on in the
+ * annotator, so documents take turns in it (see JsonPipeline.NON_REENTRANT); the rest of the pipeline
+ * still runs in parallel.
+ * 
+ * Waiting commands aren't served first-come first-served: each one's place in line is its arrival
+ * time pushed back in proportion to its estimated cost (length times the pipeline's annotator
+ * weights; see priorityOf()).  So a short document doesn't sit behind a 200KB one being parsed,
+ * but the long one still goes once it has waited out its delay.
+ * 
+ * At most
+ *     --queue N
+ * socket commands (default 1000) can be waiting for a worker.  Past that, a command is answered
+ * right away, in its usual place in the response order, with
+ *     {"error": "busy", "queue_depth": N}
+ * so a client under a burst finds out now rather than timing out later (see AdmissionQueue).
+ * "STATS \t {}" returns the queue-depth and wait-time counters, which also go in the periodic log.
+ * In the pipe and shared-memory modes only tagged commands go through the queue.
+ * 
+ * == Startup ==
+ * 
+ *     --lazy "ner, parse, dcoref"
+ * leaves those annotators out of startup; each is loaded when the first document that needs it gets
+ * to it (see LazyAnnotator).  For a server set up with a long annotator list whose traffic mostly
+ * asks for fewer (see PER-REQUEST ANNOTATORS): the heap and the startup time only go to models that
+ * are actually used.  STATS lists which annotators are loaded so far.
+ * The other annotators are loaded in parallel (see ModelLoader), and --warmup only runs the ones
+ * before the first lazy one.
+ * 
+ *     --warmup SECONDS
+ * runs a built-in corpus through the whole pipeline (see Warmup) before taking any commands, until
+ * its throughput levels off or the time is up, so the first real documents don't run cold.
+ * Once the server is taking commands it logs a line ending in "READY" to stderr, and with
+ *     --readyfile PATH
+ * writes the warm-up figures to PATH as JSON (to a temporary name first, then renamed, so the
+ * file is complete once it's there).  The file is removed again when the server starts draining,
+ * so a load balancer or supervisor can route on whether it exists.  The Python client waits for it.
+ * 
+ * == Shutdown ==
+ * 
+ * "DRAIN \t {"timeout_ms": 30000}" (timeout optional) or SIGTERM makes the server stop accepting
+ * connections and turn away new commands with {"error": "draining"}, while the commands it has
+ * already taken in are finished and answered.  Once they are, or the timeout is up, it flushes
+ * the output, logs the final stats and exits.  So a rolling restart doesn't lose any work;
+ * only kill -9 does.
  */
 public class SocketServer {
 	JsonPipeline parser;
 	boolean doSocketServer = false;
 	boolean doNamedPipes = false;
+	boolean doSharedMemory = false;
 
 	ServerSocket parseServer = null;
 	int port = -1;
+	/** if set, listen on this Unix domain socket path instead of a TCP port */
+	String unixSocketFilename;
 	String outpipeFilename;
+	/** memory-mapped file for the shared-memory transport (see SharedMemoryRing) */
+	String shmFilename;
+	int numThreads = 1;
+	ExecutorService workers;
+	/** "nio" (default), "threads" or "vthreads" */
+	String frontEnd = "nio";
+	/** in vthreads mode, bounds how many commands are annotating at once; null otherwise. */
+	PriorityPermits annotationPermits;
+	/** pipelines for requests with their own annotators or properties */
+	PipelineCache pipelines;
+	int maxPipelines = 4;
+	/** for PipelineCache; 0, the default, for no memory bound (count only) */
+	long pipelineMemory = 0;
+	/** socket commands waiting for a worker, up to --queue of them */
+	AdmissionQueue admission = new AdmissionQueue(1000);
+	/** set once DRAIN or SIGTERM has come in; new work is turned away from then on. */
+	volatile boolean draining = false;
+	/** commands read but not yet answered, over all connections */
+	AtomicInteger unanswered = new AtomicInteger();
+	/** the nio front end's listening channel, closed when draining */
+	ServerSocketChannel serverChannel;
+	/** the pipe or shm response stream, flushed at shutdown */
+	OutputStream commandStreamOut;
+	/** how long SIGTERM, or a DRAIN that doesn't say, waits for in-flight commands */
+	static final long DEFAULT_DRAIN_MILLIS = 30 * 1000;
+	/** --warmup, in milliseconds; 0 for none */
+	long warmupMillis = 0;
+	Warmup warmup = new Warmup();
+	/** written once we're taking commands, removed when draining */
+	String readyFilename;
 	
 	public static void main(String[] args) throws Exception {
 		SocketServer runner = new SocketServer();
@@ -77,11 +272,59 @@ public class SocketServer {
 				runner.port = Integer.parseInt(args[1]);
 				args = Arr.subArray(args, 2, args.length);
 			}
+			else if (args[0].equals("--unixsocket")) {
+				runner.doSocketServer = true;
+				runner.unixSocketFilename = args[1];
+				args = Arr.subArray(args, 2, args.length);
+			}
 			else if (args[0].equals("--outpipe")) {
 				runner.doNamedPipes = true;
 				runner.outpipeFilename = args[1];
 				args = Arr.subArray(args, 2, args.length);
 			}
+			else if (args[0].equals("--shm")) {
+				runner.doSharedMemory = true;
+				runner.shmFilename = args[1];
+				args = Arr.subArray(args, 2, args.length);
+			}
+			else if (args[0].equals("--threads")) {
+				runner.numThreads = Integer.parseInt(args[1]);
+				if (runner.numThreads < 1) {
+					throw new RuntimeException("--threads needs to be at least 1");
+				}
+				args = Arr.subArray(args, 2, args.length);
+			}
+			else if (args[0].equals("--pipelines")) {
+				runner.maxPipelines = Integer.parseInt(args[1]);
+				args = Arr.subArray(args, 2, args.length);
+			}
+			else if (args[0].equals("--pipelinememory")) {
+				runner.pipelineMemory = Long.parseLong(args[1]) << 20;
+				args = Arr.subArray(args, 2, args.length);
+			}
+			else if (args[0].equals("--queue")) {
+				runner.admission = new AdmissionQueue(Integer.parseInt(args[1]));
+				args = Arr.subArray(args, 2, args.length);
+			}
+			else if (args[0].equals("--warmup")) {
+				runner.warmupMillis = (long) (Double.parseDouble(args[1]) * 1000);
+				args = Arr.subArray(args, 2, args.length);
+			}
+			else if (args[0].equals("--lazy")) {
+				runner.parser.lazyAnnotators = Sets.newHashSet(args[1].trim().split("\\s*,\\s*"));
+				args = Arr.subArray(args, 2, args.length);
+			}
+			else if (args[0].equals("--readyfile")) {
+				runner.readyFilename = args[1];
+				args = Arr.subArray(args, 2, args.length);
+			}
+			else if (args[0].equals("--frontend")) {
+				runner.frontEnd = args[1];
+				if (!runner.frontEnd.equals("nio") && !runner.frontEnd.equals("threads") && !runner.frontEnd.equals("vthreads")) {
+					throw new RuntimeException("--frontend should be nio, threads or vthreads");
+				}
+				args = Arr.subArray(args, 2, args.length);
+			}
 			else if (args[0].equals("--configfile")) {
 				log("Using CoreNLP configuration file: " + args[1]);
 				runner.parser.setConfigurationFromFile(args[1]);
@@ -101,11 +344,22 @@ public class SocketServer {
 		}
 		runner.parser.initializeCorenlpPipeline();
 		log("CoreNLP pipeline initialized.");
+		if (runner.warmupMillis > 0) {
+			// the lazy annotators stay unloaded until real work needs them
+			JsonPipeline warmupPipeline = runner.parser.withoutLazyAnnotators();
+			if (warmupPipeline != null) {
+				runner.warmup.run(warmupPipeline, runner.warmupMillis);
+			}
+		}
+		runner.pipelines = new PipelineCache(runner.parser, runner.maxPipelines, runner.pipelineMemory);
+		runner.drainOnShutdown();
 		
 		if (runner.doSocketServer) {
 			runner.socketServerLoop();
 		} else if (runner.doNamedPipes) {
 			runner.namedpipeLoop();
+		} else if (runner.doSharedMemory) {
+			runner.sharedMemoryLoop();
 		} else {
 			throw new RuntimeException("no running mode selected");
 		}
@@ -117,70 +371,451 @@ public class SocketServer {
 		System.err.println("INFO:CoreNLP_JavaServer: " + message);
 	}
 
-	JsonNode runCommand(String command, String inputPayload) throws Exception {
+	JsonNode runCommand(String command, String inputPayload, ConnectionOptions options) throws Exception {
 		switch (command) {
 		case "PARSEDOC":
-			JsonNode input = JsonUtil.parse(inputPayload);
-			String text = input.asText();
-			return parser.processTextDocument(text);
+			JsonNode input = parsePayload(inputPayload);
+			String text = documentText(input);
+			JsonPipeline pipeline = pipelines.forRequest(input);
+			JsonNode previous = input.isObject() ? input.get("annotation") : null;
+			long timeoutMillis = input.has("timeout_ms") ? input.get("timeout_ms").asLong() : options.timeoutMillis;
+			long deadline = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : JsonPipeline.NO_DEADLINE;
+			return pipeline.processTextDocument(text, previous, deadline, outputOptions(input, options));
+		case "PARSEDOCS":
+			JsonNode batch = parsePayload(inputPayload);
+			JsonPipeline batchPipeline = pipelines.forRequest(batch);
+			List<String> texts = batchTexts(batch);
+			return batchPipeline.processTextDocuments(texts, batchHelpers(batchPipeline, texts), numThreads-1, outputOptions(batch, options));
 		case "CRASH":
 			throw new IOException("fake error");
 		case "PING":
 			return JsonUtil.toJson("PONG");
+		case "SETOPTS":
+			options.connection().update(parsePayload(inputPayload));
+			return options.connection().toJson();
+		case "DRAIN":
+			JsonNode drainOptions = parsePayload(inputPayload);
+			long drainMillis = drainOptions.has("timeout_ms") ? drainOptions.get("timeout_ms").asLong() : DEFAULT_DRAIN_MILLIS;
+			drainAndExit(drainMillis);
+			ObjectNode drainStatus = JsonUtil.newObject();
+			drainStatus.put("draining", true);
+			drainStatus.put("unanswered", unanswered.get());
+			return drainStatus;
+		case "STATS":
+			ObjectNode stats = (ObjectNode) admission.toJson();
+			stats.put("documents", parser.numDocs.get());
+			stats.put("tokens", parser.numTokens.get());
+			stats.put("warmup", warmup.toJson());
+			stats.put("annotators_loaded", JsonUtil.toJson(parser.loadedAnnotators()));
+			return stats;
 		default:
-			throw new RuntimeException("bad command: " + command);
+			throw new BadRequestException("bad command: " + command);
 		}
 	}
 	
-	void checkTimings() {
-		if (parser.numDocs>0 && (
-				parser.numDocs <= 10 || 
-				(parser.numDocs <= 1000 && (parser.numDocs % 100 == 0)) ||
-				(parser.numDocs % 1000 == 0)
+	static JsonNode parsePayload(String payload) throws IOException {
+		try {
+			return JsonUtil.readJson(payload);
+		} catch (JsonProcessingException e) {
+			throw new BadRequestException("payload isn't valid JSON: " + e.getMessage());
+		}
+	}
+
+	/** the connection's output options, with any that a PARSEDOC or PARSEDOCS object asks for instead */
+	static OutputOptions outputOptions(JsonNode payload, ConnectionOptions options) {
+		return payload.isObject() ? options.output.with(payload) : options.output;
+	}
+
+	/** a document is a JSON string, or an object with a 'text' field */
+	static String documentText(JsonNode doc) {
+		if (doc.isTextual()) {
+			return doc.asText();
+		}
+		if (!doc.isObject() || !doc.has("text")) {
+			throw new BadRequestException("a document should be a JSON string or an object with a 'text' field");
+		}
+		return doc.get("text").asText();
+	}
+
+	/**
+	 * the document texts of a PARSEDOCS payload: a JSON array of strings, or of objects with a 'text' field.
+	 * or an object with that array as "docs", and "annotators"/"properties" for all of them.
+	 */
+	static List<String> batchTexts(JsonNode payload) {
+		if (payload.isObject() && payload.has("docs")) {
+			payload = payload.get("docs");
+		}
+		if (!payload.isArray()) {
+			throw new BadRequestException("PARSEDOCS payload should be a JSON array");
+		}
+		List<String> texts = Lists.newArrayList();
+		for (JsonNode doc : payload) {
+			texts.add(documentText(doc));
+		}
+		return texts;
+	}
+
+	/** synchronized so concurrent workers don't interleave log lines; the counters themselves are atomic. */
+	synchronized void checkTimings() {
+		int numDocs = parser.numDocs.get();
+		if (numDocs>0 && (
+				numDocs <= 10 || 
+				(numDocs <= 1000 && (numDocs % 100 == 0)) ||
+				(numDocs % 1000 == 0)
 				)) {
-				double elapsed = (double) (System.currentTimeMillis() - parser.startMilli) / 1000.0;
-				log(String.format("INPUT: %d documents, %d characters, %d tokens, %.1f char/doc, %.1f tok/doc RATES: %.3f doc/sec, %.1f tok/sec\n",
-						parser.numDocs, parser.numChars, parser.numTokens,
-						parser.numChars*1.0 / parser.numDocs,
-						parser.numTokens*1.0 / parser.numDocs,
-						parser.numDocs*1.0 / elapsed,
-						parser.numTokens*1.0 / elapsed
-						));
+				logStats();
+			}
+	}
+
+	/** the documents/tokens/rates line, and the queue counters if there's been any socket traffic */
+	synchronized void logStats() {
+		int numDocs = parser.numDocs.get();
+		if (numDocs > 0) {
+			long numChars = parser.numChars.get();
+			long numTokens = parser.numTokens.get();
+			double elapsed = (double) (System.currentTimeMillis() - parser.startMilli.get()) / 1000.0;
+			log(String.format("INPUT: %d documents, %d characters, %d tokens, %.1f char/doc, %.1f tok/doc RATES: %.3f doc/sec, %.1f tok/sec\n",
+					numDocs, numChars, numTokens,
+					numChars*1.0 / numDocs,
+					numTokens*1.0 / numDocs,
+					numDocs*1.0 / elapsed,
+					numTokens*1.0 / elapsed
+					));
+		}
+		if (admission.numStarted.get() > 0) {
+			log(admission.summary());
+		}
+	}
+
+	/****** draining and shutdown ******/
+
+	/** null if a command can go to the workers; otherwise what to answer it with right away. */
+	JsonNode admit() {
+		if (draining) {
+			return errorResponse("draining", "server is shutting down", true);
+		}
+		if (!admission.tryAdmit()) {
+			return admission.busyResponse();
+		}
+		return null;
+	}
+
+	/** log that we're taking commands, and write the --readyfile if there is one */
+	void announceReady() throws IOException {
+		if (readyFilename != null) {
+			File tmp = new File(readyFilename + ".tmp");
+			BasicFileIO.writeFile(warmup.toJson().toString() + "\n", tmp);
+			if (!tmp.renameTo(new File(readyFilename))) {
+				throw new IOException("couldn't write ready file " + readyFilename);
 			}
+		}
+		log("READY");
+	}
+
+	/** stop taking new work and connections.  false if we already were draining. */
+	synchronized boolean startDrain() {
+		if (draining) return false;
+		draining = true;
+		if (readyFilename != null) {
+			new File(readyFilename).delete();
+		}
+		log("Draining: turning away new work, " + unanswered.get() + " command(s) still to answer");
+		try {
+			if (parseServer != null) parseServer.close();
+			if (serverChannel != null) serverChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return true;
+	}
+
+	/** wait up to timeoutMillis for everything already taken in to be answered, then flush and log the final stats. */
+	void awaitDrained(long timeoutMillis) {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (unanswered.get() > 0 && System.currentTimeMillis() < deadline) {
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		if (unanswered.get() > 0) {
+			log("Drain timed out with " + unanswered.get() + " command(s) unanswered");
+		}
+		if (commandStreamOut != null) {
+			synchronized (commandStreamOut) {
+				try {
+					commandStreamOut.flush();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		log("Shutting down.  Final stats:");
+		logStats();
+	}
+
+	/** for DRAIN: drain on a thread of its own, since the DRAIN response itself still has to go out, then exit. */
+	void drainAndExit(final long timeoutMillis) {
+		if (!startDrain()) return;
+		new Thread(new Runnable() {
+			public void run() {
+				awaitDrained(timeoutMillis);
+				System.exit(0);
+			}
+		}, "drain").start();
+	}
+
+	/** SIGTERM (and SIGINT) drain before the JVM exits.  System.exit() from drainAndExit gets here too, already drained. */
+	void drainOnShutdown() {
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				if (startDrain()) {
+					awaitDrained(DEFAULT_DRAIN_MILLIS);
+				}
+			}
+		}, "shutdown-drain"));
 	}
 	
 
-	JsonNode parseAndRunCommand(String commandstr) {
+	/** the request ID of a tagged command (three tab-separated fields), or -1 for an untagged one. */
+	static long requestIdOf(String commandstr) {
+		int firstTab = commandstr.indexOf('\t');
+		if (firstTab < 0 || commandstr.indexOf('\t', firstTab+1) < 0) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(commandstr.substring(0, firstTab));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/** parse and run a command on the current thread, and update the stats log. */
+	JsonNode executeCommand(String commandstr, ConnectionOptions options) {
+		return executeCommand(commandstr, options, -1);
+	}
+
+	/**
+	 * same, for a command that the AdmissionQueue let in at `admittedNanos`;
+	 * its wait ends once it gets a worker (or in vthreads mode, a permit).  -1 if it didn't go through the queue.
+	 */
+	JsonNode executeCommand(String commandstr, ConnectionOptions options, long admittedNanos) {
+		if (annotationPermits != null) {
+			annotationPermits.acquire(priorityOf(commandstr));
+		}
+		if (admittedNanos != -1) {
+			admission.started(admittedNanos);
+		}
+		try {
+			JsonNode result = parseAndRunCommand(commandstr, options);
+			checkTimings();
+			return result;
+		} finally {
+			if (annotationPermits != null) {
+				annotationPermits.release();
+			}
+		}
+	}
+
+	/** runs a command line, turning anything that goes wrong into an error response (see errorResponse()). */
+	JsonNode parseAndRunCommand(String commandstr, ConnectionOptions options) {
 		if (commandstr == null) {
 			return null;
 		}
+		long startMillis = System.currentTimeMillis();
 		String[] parts = commandstr.split("\t");
+		if (parts.length == 3) {
+			// tagged; the request ID is dealt with by the caller.
+			parts = Arr.subArray(parts, 1, 3);
+		}
 		if (parts.length != 2) {
-			return null;
+			return errorResponse("bad_request", "expected COMMAND \\t JSON, got " + parts.length + " field(s)", false);
 		}
 		String command = parts[0];
 		String payload = parts[1];
-		JsonNode result = null;
+		ObjectNode error;
 		try {
-			result = runCommand(command,payload);
-		} catch (Exception e) {
+			return runCommand(command,payload,options);
+		} catch (Exception | OutOfMemoryError e) {
+			error = errorFor(e);
+		}
+		error.put("elapsed_ms", System.currentTimeMillis() - startMillis);
+		return error;
+	}
+
+	/** the error response for what went wrong running a command, or annotating one of a PARSEDOCS batch's documents */
+	static ObjectNode errorFor(Throwable e) {
+		ObjectNode error;
+		if (e instanceof JsonPipeline.DeadlineExceededException) {
+			log("Gave up on a document: " + e.getMessage());
+			// the same deadline would run out again
+			error = errorResponse("timeout", e.getMessage(), false);
+			error.put("annotator", ((JsonPipeline.DeadlineExceededException) e).annotator);
+		} else if (e instanceof JsonPipeline.AnnotatorFailedException) {
 			e.printStackTrace();
-			return null;
+			// annotators are deterministic, so this document will fail the same way every time.
+			error = errorResponse("annotator_failed", e.getCause().toString(), false);
+			error.put("annotator", ((JsonPipeline.AnnotatorFailedException) e).annotator);
+			error.put("exception", e.getCause().getClass().getName());
+		} else if (e instanceof BadRequestException) {
+			error = errorResponse("bad_request", e.getMessage(), false);
+		} else if (e instanceof OutOfMemoryError) {
+			e.printStackTrace();
+			// maybe it was the company it kept; it may well go through on its own or after a restart.
+			error = errorResponse("out_of_memory", e.toString(), true);
+		} else {
+			e.printStackTrace();
+			error = errorResponse("internal", e.toString(), true);
+			error.put("exception", e.getClass().getName());
+		}
+		return error;
+	}
+
+	/** a malformed command or payload; retrying it won't help. */
+	static class BadRequestException extends RuntimeException {
+		BadRequestException(String message) {
+			super(message);
 		}
-		return result;
+	}
+
+	/**
+	 * The response for a command that failed or wasn't run:
+	 *     {"error": TYPE, "message": ..., "retryable": true/false, ...}
+	 * TYPE is one of
+	 *     bad_request        malformed command line or payload, unknown command, or annotators
+	 *                        that can't run in that order or don't include tokenize and ssplit
+	 *     annotator_failed   an annotator threw; "annotator" and "exception" say which and what
+	 *     timeout            the document's deadline ran out (in "annotator")
+	 *     out_of_memory      the JVM ran out of memory while on this command
+	 *     internal           anything else, including failing to write out the annotations; "exception" has the class
+	 *     busy, draining     not run at all (see AdmissionQueue and DRAIN)
+	 * plus "elapsed_ms" for commands that ran.  "retryable" says whether sending the same command
+	 * again, here or to another server, might work: a bad request or a failing document won't.
+	 */
+	static ObjectNode errorResponse(String error, String message, boolean retryable) {
+		ObjectNode o = JsonUtil.newObject();
+		o.put("error", error);
+		o.put("message", message);
+		o.put("retryable", retryable);
+		return o;
 	}
 	
-	void writeResultToStream(JsonNode result, OutputStream outstream) throws IOException {
-		// TODO: undefined behavior if >2GB return value ... which feels pretty possible.
-		// using a long for length here for future-proofing,
-		// but it doesn't help now since byte arrays have max length ~2e9 (Integer.MAX_VALUE or so)
-		byte[] resultToReturn = JsonUtil.om.writeValueAsBytes(result);
-		long resultLength = (long) resultToReturn.length;
-		
-		ByteBuffer bb = ByteBuffer.allocate(8);
-		bb.putLong(0, resultLength);
-		outstream.write(bb.array());
-		outstream.write(resultToReturn);
+	void writeResultToStream(JsonNode result, OutputStream outstream, String format) throws IOException {
+		// the length goes first, so the body is serialized first (see SerializedJson), in segments, so over 2GB is fine.
+		SerializedJson body = SerializedJson.of(result, format);
+		outstream.write(ByteBuffer.allocate(8).putLong(0, body.size()).array());
+		body.writeTo(outstream);
+	}
+
+	/** set in the length of a plain frame whose body is zlib-compressed */
+	static final long DEFLATED_FLAG = 1L << 62;
+
+	/**
+	 * like writeResultToStream(), but a body of at least minBytes is sent zlib-compressed, with
+	 * DEFLATED_FLAG in the length.  Annotation JSON is mostly the same tags and keys over and over,
+	 * so even the fastest level shrinks it several times over.
+	 */
+	void writeDeflatedResultToStream(JsonNode result, OutputStream outstream, int minBytes, String format) throws IOException {
+		SerializedJson body = SerializedJson.of(result, format);
+		long header = body.size();
+		if (body.size() >= minBytes) {
+			SerializedJson compressed = new SerializedJson();
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			DeflaterOutputStream dos = new DeflaterOutputStream(compressed, deflater);
+			body.writeTo(dos);
+			dos.finish();
+			deflater.end();
+			body = compressed;
+			header = body.size() | DEFLATED_FLAG;
+		}
+		outstream.write(ByteBuffer.allocate(8).putLong(0, header).array());
+		body.writeTo(outstream);
+	}
+
+	/**
+	 * chunked framing: the JSON goes out a chunk at a time, so the client never needs the length up front.
+	 * AnnotatedDocuments are written straight into the chunks (through the Deflater, if compressed), so
+	 * the response is never in memory as a whole: a chunk here, plus what `outstream` holds on to before
+	 * the client takes it (at most NioFrontEnd.MAX_QUEUED_BYTES on the non-blocking front end).
+	 * If writing them fails after the first chunk has gone out, the frame is ended there, so the
+	 * connection stays in step; the client gets a body it can't parse.  Before that, the error
+	 * response goes out instead, as it would in a length-prefixed frame.
+	 */
+	void writeChunkedResultToStream(JsonNode result, OutputStream outstream, boolean deflate, String format) throws IOException {
+		long header = deflate ? ChunkedOutputStream.CHUNKED_DEFLATED_LENGTH : ChunkedOutputStream.CHUNKED_LENGTH;
+		outstream.write(ByteBuffer.allocate(8).putLong(0, header).array());
+		ChunkedOutputStream chunks = new ChunkedOutputStream(outstream);
+		try {
+			writeChunks(result, chunks, deflate, format);
+		} catch (JsonPipeline.OutputFailedException e) {
+			e.printStackTrace();
+			if (chunks.started()) {
+				log("Ending a chunked response early: " + e.getMessage());
+			} else {
+				chunks.discard();
+				writeChunks(outputFailed(e), chunks, deflate, format);
+			}
+		}
+		chunks.finish();
+	}
+
+	void writeChunks(JsonNode result, ChunkedOutputStream chunks, boolean deflate, String format) throws IOException {
+		Deflater deflater = deflate ? new Deflater(Deflater.BEST_SPEED) : null;
+		try {
+			DeflaterOutputStream dos = deflate ? new DeflaterOutputStream(chunks, deflater, ChunkedOutputStream.CHUNK_SIZE) : null;
+			OutputStream body = deflate ? dos : chunks;
+			AnnotatedDocuments documents = AnnotatedDocuments.in(result);
+			if (documents != null) {
+				documents.writeTo(body);
+			} else {
+				SerializedJson.of(result, format).writeTo(body);
+			}
+			if (deflate) {
+				dos.finish();
+			}
+		} finally {
+			if (deflater != null) {
+				deflater.end();
+			}
+		}
+	}
+
+	/** the error response for annotations that couldn't be written out; they'd fail the same way again. */
+	static JsonNode outputFailed(JsonPipeline.OutputFailedException e) {
+		ObjectNode error = errorResponse("internal", e.getMessage(), false);
+		error.put("exception", e.getCause().getClass().getName());
+		return error;
+	}
+
+	/**
+	 * Writes a complete response frame: the request ID if it's a tagged command,
+	 * then the result, with the framing the connection's options ask for.
+	 * A result that can't be written out (see AnnotatedDocuments) is answered with an error instead.
+	 */
+	void writeResponse(long requestId, JsonNode result, OutputStream outstream, ConnectionOptions framing) throws IOException {
+		if (requestId >= 0) {
+			outstream.write(ByteBuffer.allocate(8).putLong(0, requestId).array());
+		}
+		if (framing.chunked) {
+			writeChunkedResultToStream(result, outstream, framing.deflate(), framing.output.format);
+			return;
+		}
+		try {
+			writeLengthPrefixed(result, outstream, framing);
+		} catch (JsonPipeline.OutputFailedException e) {
+			// nothing's gone out yet: the body is serialized before the length
+			e.printStackTrace();
+			writeLengthPrefixed(outputFailed(e), outstream, framing);
+		}
+	}
+
+	void writeLengthPrefixed(JsonNode result, OutputStream outstream, ConnectionOptions framing) throws IOException {
+		if (framing.deflate()) {
+			writeDeflatedResultToStream(result, outstream, framing.compressMinBytes, framing.output.format);
+		} else {
+			writeResultToStream(result, outstream, framing.output.format);
+		}
 	}
 	
 	/*******  socket server stuff   ***********/
@@ -195,46 +830,301 @@ public class SocketServer {
 		}
 	}
 
+	/**
+	 * A server channel for the nio front end: a Unix domain socket if --unixsocket was given,
+	 * otherwise TCP on --server's port.
+	 * The Unix domain socket API is Java 16+, so it's looked up reflectively since we compile for Java 8.
+	 */
+	ServerSocketChannel openServerChannel() throws IOException {
+		if (unixSocketFilename == null) {
+			ServerSocketChannel channel = ServerSocketChannel.open();
+			channel.bind(new InetSocketAddress(port));
+			return channel;
+		}
+		File socketFile = new File(unixSocketFilename);
+		if (socketFile.exists()) {
+			// left over from a previous run; bind() fails if it's still there.
+			socketFile.delete();
+		}
+		try {
+			ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+			SocketAddress address = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+					.getMethod("of", String.class).invoke(null, unixSocketFilename);
+			ServerSocketChannel channel = (ServerSocketChannel) ServerSocketChannel.class
+					.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+			channel.bind(address);
+			socketFile.deleteOnExit();
+			return channel;
+		} catch (ReflectiveOperationException | IllegalArgumentException e) {
+			throw new RuntimeException("--unixsocket needs Java 16 or later", e);
+		}
+	}
+
 	Socket getSocketConnection() throws IOException {
-		// could be smarter here and reuse same socket for multiple commands.
 //		log("sotimeout " + parseServer.getSoTimeout()); // seems to be 0 on both mac and linux, though linux is happy to return null and mac is not
 		Socket clientSocket = parseServer.accept();
 //		System.err.println("Connection Accepted From: "+clientSocket.getInetAddress());
+		// each response is flushed as a whole, so don't let Nagle hold back the tail of it.
+		clientSocket.setTcpNoDelay(true);
 		return clientSocket;
-		
 	}
 	
+	/** nanoseconds a document's turn is pushed back per unit of estimated cost (see JsonPipeline.estimateCost) */
+	static final double DELAY_NANOS_PER_COST = 10 * 1000;
+
+	/**
+	 * where a command goes in the workers' queue (see ScheduledCommand): now, pushed back in
+	 * proportion to the estimated cost of the documents it annotates.  e.g. with 'parse',
+	 * a 20-token document waits ~10ms longer than a PING, a 50,000-token one ~30s.
+	 * Doesn't parse the payload, since this runs on the front end's thread: it goes by the payload's
+	 * length, and by a request's own "annotators" if it has them (see PipelineCache), picked out with ANNOTATORS_FIELD.
+	 */
+	long priorityOf(String commandstr) {
+		long now = System.nanoTime();
+		int commandStart = requestIdOf(commandstr) >= 0 ? commandstr.indexOf('\t') + 1 : 0;
+		if (!commandstr.startsWith("PARSEDOC", commandStart)) {
+			return now;
+		}
+		int payloadStart = commandstr.indexOf('\t', commandStart) + 1;
+		int payloadChars = commandstr.length() - payloadStart;
+		double costPerToken = parser.costPerToken;
+		if (commandstr.startsWith("{", payloadStart) && commandstr.indexOf("\"annotators\"", payloadStart) >= 0) {
+			Matcher m = ANNOTATORS_FIELD.matcher(commandstr);
+			if (m.find(payloadStart)) {
+				costPerToken = JsonPipeline.costPerToken(m.group(1).trim().split("\\s*,\\s*"));
+			}
+		}
+		return now + (long) (parser.estimateCost(payloadChars, costPerToken) * DELAY_NANOS_PER_COST);
+	}
+
+	/**
+	 * "annotators": "..." in a request object.  Inside the document's text the quotes would be
+	 * escaped, so the text can't be mistaken for it.
+	 */
+	static final Pattern ANNOTATORS_FIELD = Pattern.compile("\"annotators\"\\s*:\\s*\"([^\"\\\\]*)\"");
+
+	/** queue a task for the workers, prioritized by the cost of its command */
+	void schedule(String commandstr, final Runnable task) {
+		schedule(new ScheduledCommand(priorityOf(commandstr)) {
+			public void run() {
+				task.run();
+			}
+		});
+	}
+
+	void schedule(ScheduledCommand command) {
+		workers.execute(command);
+	}
+
+	/**
+	 * where a PARSEDOCS batch's helpers go (see JsonPipeline.annotateAll()): the workers' queue, at the priority
+	 * of one of its documents of average length, or in vthreads mode, a thread of their own that waits for a permit.
+	 */
+	Executor batchHelpers(JsonPipeline pipeline, List<String> texts) {
+		long chars = 0;
+		for (String text : texts) {
+			chars += text.length();
+		}
+		final long priority = System.nanoTime()
+				+ (long) (pipeline.estimateCost(chars / Math.max(1, texts.size())) * DELAY_NANOS_PER_COST);
+		return new Executor() {
+			public void execute(final Runnable helper) {
+				if (annotationPermits == null) {
+					schedule(new ScheduledCommand(priority) {
+						public void run() {
+							helper.run();
+						}
+					});
+					return;
+				}
+				workers.execute(new Runnable() {
+					public void run() {
+						annotationPermits.acquire(priority);
+						try {
+							helper.run();
+						} finally {
+							annotationPermits.release();
+						}
+					}
+				});
+			}
+		};
+	}
+
+	/** run one command on a worker thread and wait for its result; a BUSY response if the queue is full. */
+	JsonNode runOnWorker(final String commandstr, final ConnectionOptions options) throws InterruptedException {
+		JsonNode rejection = admit();
+		if (rejection != null) {
+			return rejection;
+		}
+		final long admitted = System.nanoTime();
+		if (annotationPermits != null) {
+			// vthreads mode: the connection's own thread is cheap, so just run it here.
+			return executeCommand(commandstr, options, admitted);
+		}
+		FutureTask<JsonNode> future = new FutureTask<>(new Callable<JsonNode>() {
+			public JsonNode call() {
+				return executeCommand(commandstr, options, admitted);
+			}
+		});
+		schedule(commandstr, future);
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			// executeCommand() turns its own failures into error responses, so this is something else, e.g. an Error
+			e.printStackTrace();
+			ObjectNode error = errorResponse("internal", e.getCause().toString(), true);
+			error.put("exception", e.getCause().getClass().getName());
+			return error;
+		}
+	}
+
+	/**
+	 * Run a tagged command on a worker thread without waiting for it.  The worker writes the
+	 * response itself when it's done, so responses can come back out of order.
+	 * Writes are synchronized on the output stream since several workers share it.
+	 */
+	void submitTaggedCommand(final long requestId, final String commandstr, final OutputStream out,
+			final ConnectionOptions options, final Phaser inFlight) throws IOException {
+		unanswered.incrementAndGet();
+		JsonNode rejection = admit();
+		if (rejection != null) {
+			try {
+				synchronized (out) {
+					writeResponse(requestId, rejection, out, options.copy());
+					out.flush();
+				}
+			} finally {
+				unanswered.decrementAndGet();
+			}
+			return;
+		}
+		final long admitted = System.nanoTime();
+		inFlight.register();
+		// the settings are taken now, not when a worker gets to it, so a later SETOPTS doesn't change how it's run or answered
+		schedule(new ScheduledCommand(priorityOf(commandstr), options) {
+			public void run() {
+				try {
+					JsonNode result = executeCommand(commandstr, snapshot, admitted);
+					synchronized (out) {
+						writeResponse(requestId, result, out, snapshot);
+						out.flush();
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				} finally {
+					unanswered.decrementAndGet();
+					inFlight.arriveAndDeregister();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Keep-alive: keep reading commands from one connection until the client closes it.
+	 * Untagged commands are answered in order; tagged ones are pipelined.
+	 */
+	void handleConnection(Socket clientSocket) {
+		try {
+			BufferedReader br = new BufferedReader(new InputStreamReader(clientSocket.getInputStream(), "UTF-8"));
+			OutputStream out = new BufferedOutputStream(clientSocket.getOutputStream());
+			// tracks tagged commands still running, so we don't close the socket under them.
+			Phaser inFlight = new Phaser(1);
+			ConnectionOptions options = new ConnectionOptions();
+			String commandstr;
+			while ( (commandstr=br.readLine()) != null) {
+//				log("COMMANDSTR " + commandstr);
+				long requestId = requestIdOf(commandstr);
+				if (requestId >= 0) {
+					submitTaggedCommand(requestId, commandstr, out, options, inFlight);
+					continue;
+				}
+				unanswered.incrementAndGet();
+				try {
+					ConnectionOptions framing = options.snapshot();
+					JsonNode result = runOnWorker(commandstr, framing);
+					// result could be null.  let's just write it back since the client is waiting.
+					synchronized (out) {
+						writeResponse(-1, result, out, framing);
+						out.flush();
+					}
+				} finally {
+					unanswered.decrementAndGet();
+				}
+			}
+			inFlight.arriveAndAwaitAdvance();
+		} catch (IOException | InterruptedException e) {
+			e.printStackTrace();
+		} finally {
+			try { clientSocket.close(); } catch (IOException e) { }
+		}
+	}
+
+	/**
+	 * Executors.newVirtualThreadPerTaskExecutor() if the JVM has it (Java 21+).
+	 * It's looked up reflectively since we compile for Java 8.
+	 */
+	static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			log("Virtual threads aren't available on this JVM; falling back to platform threads");
+			return Executors.newCachedThreadPool();
+		}
+	}
+
 	void socketServerLoop() throws JsonGenerationException, JsonMappingException, IOException {
-		// declare a server socket and a client socket for the server
-		// declare an input and an output stream
-		BufferedReader br;
-		Socket clientSocket = null;
-		String commandstr=null;
-		
+		if (frontEnd.equals("vthreads")) {
+			// every connection and every tagged command gets its own thread;
+			// the permits do the job of the fixed-size pool.
+			workers = newVirtualThreadExecutor();
+			annotationPermits = new PriorityPermits(numThreads);
+			log("Using a thread per connection, with at most " + numThreads + " annotating at once");
+		} else {
+			startWorkerPool();
+		}
+		if (frontEnd.equals("nio")) {
+			serverChannel = openServerChannel();
+			announceReady();
+			new NioFrontEnd(this, serverChannel).run();
+		} else if (unixSocketFilename != null) {
+			throw new RuntimeException("--unixsocket only works with --frontend nio");
+		} else {
+			threadPerConnectionLoop();
+		}
+	}
+
+	void startWorkerPool() {
+		// a fixed pool, but handing out work by ScheduledCommand.priority instead of first-come first-served
+		workers = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<Runnable>());
+		log("Using " + numThreads + " annotation worker thread(s)");
+	}
+
+	void threadPerConnectionLoop() throws IOException {
 		initializeSocketServer();
+		announceReady();
+		// one thread per open connection; they mostly sit in readLine() or wait on the workers.
+		ExecutorService connectionThreads = annotationPermits != null ? workers : Executors.newCachedThreadPool();
 
 		while (true) {
 //			log("Waiting for Connection on Port: "+port);
-			commandstr = null;
+			final Socket clientSocket;
 			try {
 				clientSocket = getSocketConnection();
-				br = new BufferedReader(new InputStreamReader(new DataInputStream(clientSocket.getInputStream())));
-				commandstr = br.readLine();
 			} catch (IOException e) {
+				if (draining) {
+					// the listening socket was closed on purpose
+					return;
+				}
 				e.printStackTrace();
 				continue;
 			}
-//			log("COMMANDSTR " + commandstr);
-			if (commandstr==null) {
-				// on linux but not mac this seems to happen during startup
-				// when the client isn't actually asking anything but on the server accept() seems to try to get something anyway
-				continue;
-			}
-			JsonNode result = parseAndRunCommand(commandstr);
-//			log("RESULT " + result);
-			// result could be null.  let's just write it back since the client is waiting.
-			writeResultToStream(result, clientSocket.getOutputStream());
-			checkTimings();
+			connectionThreads.submit(new Runnable() {
+				public void run() {
+					handleConnection(clientSocket);
+				}
+			});
 		}
 //		parseServer.close();
 	}
@@ -243,19 +1133,60 @@ public class SocketServer {
 	/***********  stdin/namedpipe loop  ***********/
 
 	void namedpipeLoop() throws JsonGenerationException, JsonMappingException, IOException {
-		BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
-		String inputline;
+		// before opening the fifo, which waits for the client to open its end;
+		// the client may be waiting for the ready file first.  commands sent meanwhile wait in stdin.
+		announceReady();
 		BufferedOutputStream out = new BufferedOutputStream(
 				new FileOutputStream(outpipeFilename, true));
 //		OutputStream out = new FileOutputStream(outpipeFilename, true);
 		log("Waiting for commands on stdin");
+		commandStreamLoop(System.in, out);
+	}
+
+	void sharedMemoryLoop() throws JsonGenerationException, JsonMappingException, IOException {
+		SharedMemoryRing[] rings = SharedMemoryRing.open(shmFilename);
+		log("Waiting for commands in shared memory file " + shmFilename);
+		announceReady();
+		// buffered so a frame's header and body get published to the ring together
+		commandStreamLoop(rings[0].inputStream(), new BufferedOutputStream(rings[1].outputStream()));
+	}
+
+	/**
+	 * Commands from `in`, each response written and flushed to `out`.  Same rules as a socket connection:
+	 * untagged commands are run right here, one at a time, and tagged ones go to the worker pool,
+	 * so with --threads N a client that tags its commands (e.g. with line numbers) gets N documents
+	 * annotated at once and the responses back in whatever order they finish.
+	 */
+	void commandStreamLoop(InputStream in, OutputStream out) throws JsonGenerationException, JsonMappingException, IOException {
+		startWorkerPool();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		String inputline;
+		ConnectionOptions options = new ConnectionOptions();
+		commandStreamOut = out;
+		Phaser inFlight = new Phaser(1);
 		while ( (inputline=reader.readLine()) != null) {
-			JsonNode result = parseAndRunCommand(inputline);
-			writeResultToStream(result, out);
-			out.flush();
-			checkTimings();
+			long requestId = requestIdOf(inputline);
+			if (requestId >= 0) {
+				submitTaggedCommand(requestId, inputline, out, options, inFlight);
+				continue;
+			}
+			unanswered.incrementAndGet();
+			try {
+				ConnectionOptions framing = options.snapshot();
+				JsonNode result = draining ? admit() : executeCommand(inputline, framing);
+				synchronized (out) {
+					writeResponse(-1, result, out, framing);
+					out.flush();
+				}
+			} finally {
+				unanswered.decrementAndGet();
+			}
 		}
+		// end of input: answer what's still running, then let the JVM exit.
+		inFlight.arriveAndAwaitAdvance();
+		workers.shutdown();
 
 	}
 
 }
+
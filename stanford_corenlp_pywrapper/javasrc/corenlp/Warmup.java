@@ -0,0 +1,102 @@
+package corenlp;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+import util.JsonUtil;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Runs a built-in synthetic corpus through a freshly initialized pipeline before the server takes
+ * any real work, so the annotators' hot paths (and our JSON output) are already compiled by the JIT
+ * when the first client document arrives, instead of the first few hundred of them running slowly.
+ *
+ * Goes round by round, each round being the whole corpus, until a round's throughput is within
+ * STABLE_RATIO of the round before, or the time limit (--warmup SECONDS) is up.
+ * Warm-up documents don't count in the server's stats.
+ */
+class Warmup {
+	/** sentences meant to get every annotator going: names, places, dates, money, quotes, clauses, long and short */
+	static final String[] SENTENCES = {
+		"The quick brown fox jumps over the lazy dog.",
+		"Barack Obama was born in Honolulu, Hawaii, on August 4, 1961.",
+		"Apple Inc. said on Tuesday that its quarterly revenue rose 12% to $58.3 billion.",
+		"\"I don't think so,\" she replied, closing the door behind her.",
+		"After the meeting in Geneva ended, the ministers, who had argued for hours, flew back to Paris and Berlin.",
+		"Dr. Smith's lab at Stanford University published three papers in Nature last year.",
+		"It rained.",
+		"When John gave Mary the book that he had bought in London, she thanked him and put it on the shelf next to the others.",
+		"The committee will meet again at 3:30 p.m. on March 15th to vote on the $1.2 million budget.",
+		"Can you believe they won the World Cup in 2014?",
+		"Researchers at the University of Washington found that the new drug reduced symptoms in 40 percent of patients.",
+		"He said that the company, which was founded in 1998 by two students, now employs more than 60,000 people worldwide.",
+	};
+
+	/** stop once a round's rate is within this fraction of the previous round's */
+	static final double STABLE_RATIO = 0.1;
+	/** ...but not before this many rounds, since the first couple are mostly loading and compiling */
+	static final int MIN_ROUNDS = 3;
+
+	/** set once run() is done; for STATS and the ready file */
+	int rounds = 0;
+	long millis = 0;
+	double docsPerSec = 0;
+	boolean stable = false;
+
+	/** documents of 1, 2, ... sentences, so short and long documents both get warmed up */
+	static List<String> corpus() {
+		List<String> docs = Lists.newArrayList();
+		for (int n=1; n <= SENTENCES.length; n++) {
+			StringBuilder sb = new StringBuilder();
+			for (int i=0; i < n; i++) {
+				if (i > 0) sb.append(' ');
+				sb.append(SENTENCES[(n+i) % SENTENCES.length]);
+			}
+			docs.add(sb.toString());
+		}
+		return docs;
+	}
+
+	void run(JsonPipeline pipeline, long maxMillis) {
+		List<String> docs = corpus();
+		long start = System.currentTimeMillis();
+		double previousRate = 0;
+		while (System.currentTimeMillis() - start < maxMillis) {
+			long roundStart = System.nanoTime();
+			for (String doc : docs) {
+				// with the JSON output too, the way a length-prefixed response gets it
+				try {
+					SerializedJson.of(pipeline.processTextDocument(doc), SerializedJson.JSON);
+				} catch (IOException e) {
+					// it's all in memory
+					throw new RuntimeException(e);
+				}
+			}
+			double rate = docs.size() / ((System.nanoTime() - roundStart) / 1e9);
+			rounds++;
+			docsPerSec = rate;
+			if (rounds >= MIN_ROUNDS && Math.abs(rate - previousRate) <= STABLE_RATIO * previousRate) {
+				stable = true;
+				break;
+			}
+			previousRate = rate;
+		}
+		millis = System.currentTimeMillis() - start;
+		pipeline.resetStats();
+		SocketServer.log(String.format("Warm-up: %d round(s) of %d documents in %.1f sec, last at %.1f doc/sec%s",
+				rounds, docs.size(), millis / 1e3, docsPerSec, stable ? "" : " (hadn't leveled off yet)"));
+	}
+
+	JsonNode toJson() {
+		ObjectNode o = JsonUtil.newObject();
+		o.put("rounds", rounds);
+		o.put("elapsed_ms", millis);
+		o.put("docs_per_sec", docsPerSec);
+		o.put("stable", stable);
+		return o;
+	}
+}
@@ -3,7 +3,7 @@ Client and process monitor for the java socket server.
 """
 
 from __future__ import division
-import subprocess, tempfile, time, os, logging, re, struct, socket, atexit, glob, itertools
+import subprocess, tempfile, time, os, logging, re, struct, socket, atexit, glob, itertools, mmap, zlib, platform, contextlib
 from copy import copy,deepcopy
 from pprint import pprint
 try:
@@ -39,9 +39,35 @@ LOG.setLevel("INFO")
 # LOG.setLevel("DEBUG")
 
 PARSEDOC_TIMEOUT_SEC = 60 * 5
+# parse_doc() tells the server to give up on a document after `timeout`; the
+# client waits this much longer for the server's timeout answer before giving
+# up on the connection itself.
+SERVER_TIMEOUT_GRACE_SEC = 5.0
+# parse_docs() waits this long before resending a document the server was too
+# busy to queue.
+BUSY_RETRY_SEC = 0.1
+# how long shutdown() lets the server finish in-flight documents
+SHUTDOWN_TIMEOUT_SEC = 30.0
 STARTUP_BUSY_WAIT_INTERVAL_SEC = 1.0
+# how often start_server() looks for the server's ready file
+READY_POLL_INTERVAL_SEC = 0.05
+
+# ring sizes for comm_mode='SHM'.  responses bigger than the ring still work,
+# they just get streamed through it in pieces.
+SHM_REQUEST_RING_BYTES = 4 * 1024 * 1024
+SHM_RESPONSE_RING_BYTES = 32 * 1024 * 1024
+
+# length field of a response frame that is streamed in chunks instead
+CHUNKED_FRAME = 2**64 - 1
+# same, but the chunks make up a zlib stream (compression='deflate')
+CHUNKED_DEFLATED_FRAME = 2**64 - 2
+# set in the length field of a plain frame whose body is zlib-compressed
+DEFLATED_FLAG = 2**62
+# a response body that starts with this is Smile (output_format='smile'), not JSON
+SMILE_HEADER = ':)\n'
 
 def command(mode=None, configfile=None, configdict=None, comm_mode=None,
+        threads=1, frontend='nio',
         java_command="java",
         java_options="-Xmx4g -XX:ParallelGCThreads=1",
         **kwargs):
@@ -65,13 +91,23 @@ def command(mode=None, configfile=None, configdict=None, comm_mode=None,
         j = json.dumps(configdict)
         assert "'" not in j, "can't handle single quote in config values"
         more_config += " --configdict '{}'".format(j)
+    if kwargs.get('lazy'):
+        more_config += " --lazy '{}'".format(kwargs['lazy'])
+    if kwargs.get('warmup'):
+        more_config += " --warmup {}".format(kwargs['warmup'])
+    if kwargs.get('readyfile'):
+        more_config += " --readyfile '{}'".format(kwargs['readyfile'])
     d['more_config'] = more_config
 
     if comm_mode=='SOCKET':
-        d['comm_info'] = "--server {server_port}".format(**d)
+        d['comm_info'] = "--server {server_port} --threads {threads} --frontend {frontend}".format(**d)
+    elif comm_mode=='UNIX':
+        d['comm_info'] = "--unixsocket {unixsocket} --threads {threads}".format(**d)
     elif comm_mode=='PIPE':
-        d['comm_info'] = "--outpipe {outpipe}".format(**d)
-    else: assert False, "need comm_mode to be SOCKET or PIPE but got " + repr(comm_mode)
+        d['comm_info'] = "--outpipe {outpipe} --threads {threads}".format(**d)
+    elif comm_mode=='SHM':
+        d['comm_info'] = "--shm {shmfile} --threads {threads}".format(**d)
+    else: assert False, "need comm_mode to be SOCKET, UNIX, PIPE or SHM but got " + repr(comm_mode)
 
 
     cmd = """exec {java_command} {java_options} -cp '{classpath}' 
@@ -91,8 +127,13 @@ class CoreNLP:
                 "/home/sw/corenlp/stanford-corenlp-full-2015-04-20/*",
                 "/home/sw/stanford-srparser-2014-10-23-models.jar",
                 ),
-            comm_mode='PIPE',  # SOCKET or PIPE
+            comm_mode='PIPE',  # SOCKET, UNIX, PIPE or SHM
             server_port=12340, outpipe_filename_prefix="/tmp/corenlp_pywrap_pipe",
+            unixsocket_filename_prefix="/tmp/corenlp_pywrap_sock",
+            threads=1, frontend='nio',
+            chunked=False, compression=None, output_format='json',
+            layout='rows', typed_offsets=False,
+            warmup=0, lazy=None,
             **more_configdict_args
             ):
         """
@@ -114,14 +155,76 @@ class CoreNLP:
 
         server_port: have to specify this if you want to run multple instances
         in separate processes.  todo we should use some other communication
-        mechanism that doesnt have to worry about this
+        mechanism that doesnt have to worry about this.  comm_mode='UNIX' is
+        that: a Unix domain socket with a per-process filename, so there are
+        no ports to collide.  It needs Java 16 or later.
+
+        threads: number of annotation worker threads in the java server.  only
+        useful if several clients talk to the same server, or with
+        parse_docs(), which pipelines documents in any comm_mode.
+
+        frontend: how the java server handles socket connections: 'nio' (one
+        selector thread), 'threads' (a thread per connection) or 'vthreads'
+        (a virtual thread per connection, with `threads` bounding how many
+        annotate at once).
+
+        chunked: ask the server to stream responses in chunks, so it never
+        holds a whole serialized response in memory.  For very large outputs.
+
+        compression: 'deflate' to have the server zlib-compress responses of
+        1KB or more.  Annotation JSON shrinks several times over, which helps
+        when the server is on another host; on the same host it's mostly
+        wasted CPU.
+
+        output_format: 'smile' to have the server send results in Smile, a
+        binary encoding of the same JSON data, which is about a quarter smaller.
+        Needs the pysmile module.  parse_doc() and
+        parse_doc_batch() can also ask for it per call.
+
+        layout: 'columnar' to get each document as one flat list per field
+        instead of a dict per sentence: 'sentence_offsets' says where each
+        sentence starts in 'tokens', 'pos', etc. (it has one more entry than
+        there are sentences), 'char_offsets' comes as 'char_begin' and
+        'char_end', and dependencies as dicts of 'sentence', 'rel', 'gov' and
+        'dep' lists.  Cheaper to decode, and easy to load into numpy or
+        pandas.  Results in this layout can't be passed as `previous`.
+        split_columns() turns one back into the default 'rows' layout.
+
+        typed_offsets: with layout='columnar', send sentence_offsets,
+        char_begin and char_end as packed little-endian int32s, for
+        numpy.frombuffer(x, '<i4').  In JSON they come base64-encoded.
+
+        warmup: before taking any documents, the server runs a built-in corpus
+        through the pipeline for up to this many seconds (less if its speed
+        levels off first), so the first real documents aren't slowed down by
+        JIT compilation.  The constructor returns once that's done.
+
+        lazy: annotators not to load until a document needs them, e.g.
+        "ner, parse, dcoref" when most calls to parse_doc() pass a shorter
+        `annotators` list.  Saves startup time and heap for models that
+        end up unused.
         """
         self.mode = mode
         self.proc = None
         self.server_port = server_port
+        self.threads = threads
+        self.frontend = frontend
+        self.chunked = chunked
+        self.compression = compression
+        self.output_format = output_format
+        self.layout = layout
+        self.typed_offsets = typed_offsets
+        self.warmup = warmup
+        self.lazy = lazy
         self.configfile = configfile
         self.comm_mode = comm_mode
         self.outpipe = None
+        self.unixsocket = None
+        self.sock = None
+        self.shmfile = None
+        self.shm = None
+        # the server writes this once it's taking commands
+        self.readyfile = "%s_pypid=%d_time=%s.ready" % (outpipe_filename_prefix, os.getpid(), time.time())
 
         self.configdict = deepcopy(configdict)
         if not self.configdict: self.configdict = {}
@@ -132,6 +235,14 @@ class CoreNLP:
             tag = "pypid=%d_time=%s" % (os.getpid(), time.time())
             self.outpipe = "%s_%s" % (outpipe_filename_prefix, tag)
             assert not os.path.exists(self.outpipe)
+        elif self.comm_mode=='UNIX':
+            tag = "pypid=%d_time=%s" % (os.getpid(), time.time())
+            self.unixsocket = "%s_%s" % (unixsocket_filename_prefix, tag)
+            assert not os.path.exists(self.unixsocket)
+        elif self.comm_mode=='SHM':
+            tag = "pypid=%d_time=%s" % (os.getpid(), time.time())
+            self.shmfile = "%s_%s.shm" % (outpipe_filename_prefix, tag)
+            assert not os.path.exists(self.shmfile)
 
         assert isinstance(corenlp_jars, (list,tuple))
 
@@ -153,9 +264,19 @@ class CoreNLP:
         atexit.register(self.cleanup)
 
     def cleanup(self):
-        self.kill_proc_if_running()
+        self.shutdown()
+        self.close_socket()
         if self.outpipe and os.path.exists(self.outpipe):
             os.unlink(self.outpipe)
+        if self.unixsocket and os.path.exists(self.unixsocket):
+            os.unlink(self.unixsocket)
+        if self.shm:
+            self.shm.close()
+            self.shm = None
+        if self.shmfile and os.path.exists(self.shmfile):
+            os.unlink(self.shmfile)
+        if os.path.exists(self.readyfile):
+            os.unlink(self.readyfile)
 
     def __del__(self):
         # This is also an unreliable way to ensure the subproc is gone, but
@@ -164,19 +285,27 @@ class CoreNLP:
 
     def start_server(self):
         self.kill_proc_if_running()
+        self.close_socket()
 
         if self.comm_mode=='PIPE':
             if not os.path.exists(self.outpipe):
                 os.mkfifo(self.outpipe)
+        elif self.comm_mode=='SHM':
+            # fresh rings for every server process
+            if self.shm:
+                self.shm.close()
+            self.shm = SharedMemoryRings(self.shmfile,
+                    SHM_REQUEST_RING_BYTES, SHM_RESPONSE_RING_BYTES)
         
+        if os.path.exists(self.readyfile):
+            os.unlink(self.readyfile)
         cmd = command(**self.__dict__)
         LOG.info("Starting java subprocess, and waiting for signal it's ready, with command: %s" % cmd)
         self.proc = subprocess.Popen(cmd, shell=True, stdin=subprocess.PIPE)
-        time.sleep(STARTUP_BUSY_WAIT_INTERVAL_SEC)
+        self.wait_until_ready()
 
-        if self.comm_mode=='SOCKET':
-            sock = self.get_socket(num_retries=100, retry_interval=STARTUP_BUSY_WAIT_INTERVAL_SEC)
-            sock.close()
+        if self.uses_socket():
+            self.get_socket(num_retries=100, retry_interval=STARTUP_BUSY_WAIT_INTERVAL_SEC)
         elif self.comm_mode=='PIPE':
             self.outpipe_fp = open(self.outpipe, 'r')
 
@@ -192,12 +321,28 @@ class CoreNLP:
                 LOG.info("Successful ping. The server has started.")
                 break
             except socket.error, e:
+                self.close_socket()
                 LOG.info("Waiting for startup: ping got exception: %s %s" % (type(e), e))
                 LOG.info("pausing before retry")
                 time.sleep(STARTUP_BUSY_WAIT_INTERVAL_SEC)
 
+        if not self.uses_socket() and self.connection_options():
+            # the pipe and shm streams count as one connection
+            self.send_command_and_parse_result(
+                    "SETOPTS\t%s" % json.dumps(self.connection_options()), 10)
+
         LOG.info("Subprocess is ready.")
 
+    def wait_until_ready(self):
+        """Waits for the server's ready file, which it writes once it has
+        loaded its models, warmed up, and is taking commands."""
+        while not os.path.exists(self.readyfile):
+            if self.proc.poll() is not None:
+                raise SubprocessCrashed("java server exited with code %s during startup" % self.proc.returncode)
+            time.sleep(READY_POLL_INTERVAL_SEC)
+        with open(self.readyfile) as f:
+            LOG.info("Server is ready; warm-up: %s" % f.read().strip())
+
     def ensure_proc_is_running(self):
         if self.proc is None:
             # Has never been started
@@ -206,6 +351,19 @@ class CoreNLP:
             # Restart
             self.start_server()
 
+    def shutdown(self, timeout=SHUTDOWN_TIMEOUT_SEC):
+        """Stops the server gracefully: SIGTERM makes it finish and answer
+        the documents it already has, then exit.  Only if it's still around
+        after `timeout` does it get killed."""
+        if self.proc is None or self.proc.poll() is not None:
+            return self.kill_proc_if_running()
+        LOG.info("Asking subprocess %s to shut down" % self.proc.pid)
+        os.kill(self.proc.pid, 15)
+        deadline = time.time() + timeout + SERVER_TIMEOUT_GRACE_SEC
+        while self.proc.poll() is None and time.time() < deadline:
+            time.sleep(0.05)
+        self.kill_proc_if_running()
+
     def kill_proc_if_running(self):
         if self.proc is None:
             # it's never been started yet
@@ -217,17 +375,152 @@ class CoreNLP:
             LOG.warning("Killing subprocess %s" % self.proc.pid)
             os.kill(self.proc.pid, 9)
 
-    def parse_doc(self, text, timeout=PARSEDOC_TIMEOUT_SEC, raw=False):
-        cmd = "PARSEDOC\t%s" % json.dumps(text)
-        return self.send_command_and_parse_result(cmd, timeout, raw=raw)
+    def parse_doc(self, text, timeout=PARSEDOC_TIMEOUT_SEC, raw=False,
+            annotators=None, properties=None, previous=None, output_format=None,
+            layout=None, typed_offsets=None):
+        """The server stops working on the document after `timeout` seconds,
+        and then this returns None, same as for a client-side timeout.  But the
+        server is free for the next document right away.
+        Returns None too if the server couldn't parse it; see error_of().
+
+        annotators, properties: use these (a string like "tokenize, ssplit",
+        and a dict of CoreNLP properties, like {'pos.maxlen': 100}; not model
+        paths) instead of the server's startup configuration for this
+        document.  The server caches a pipeline per
+        combination, and annotators they share are only loaded once.
+
+        previous: an earlier parse_doc() result for the same text.  The
+        server picks up from its tokens, sentences, POS tags, lemmas and NER
+        tags and only runs the annotators after those, e.g. to add 'parse'
+        to documents that were only run through 'ssplit'.
+
+        output_format: 'json' or 'smile' for this document instead of the
+        connection's; raw=True then returns the bytes in that format.
+
+        layout, typed_offsets: as for the constructor, for this document."""
+        payload = {'text': text, 'timeout_ms': int(timeout * 1000)}
+        payload.update(pipeline_settings(annotators, properties, output_format,
+            layout, typed_offsets))
+        if previous is not None:
+            payload['annotation'] = previous
+        cmd = "PARSEDOC\t%s" % json.dumps(payload)
+        return self.send_command_and_parse_result(cmd, timeout + SERVER_TIMEOUT_GRACE_SEC, raw=raw)
+
+    def stats(self):
+        """The server's queue-depth and wait-time counters."""
+        return self.send_command_and_parse_result("STATS\t{}", PARSEDOC_TIMEOUT_SEC)
+
+    def parse_doc_batch(self, texts, timeout=PARSEDOC_TIMEOUT_SEC, raw=False,
+            annotators=None, properties=None, output_format=None,
+            layout=None, typed_offsets=None):
+        """Parses a list of documents with a single PARSEDOCS command; the
+        server annotates them in parallel on its worker threads and sends all
+        results back together, in order.  Cheaper than one parse_doc() per
+        document when they are short.  Works in every comm_mode.
+        A document that fails is None in the list, like parse_doc()'s result;
+        with raw=True it's the server's error response (see error_of()).
+        annotators, properties, output_format, layout, typed_offsets: as for
+        parse_doc()."""
+        payload = list(texts)
+        settings = pipeline_settings(annotators, properties, output_format,
+            layout, typed_offsets)
+        if settings:
+            payload = dict(settings, docs=payload)
+        cmd = "PARSEDOCS\t%s" % json.dumps(payload)
+        results = self.send_command_and_parse_result(cmd, timeout, raw=raw)
+        if raw or results is None:
+            return results
+        for i, result in enumerate(results):
+            if error_of(result):
+                log_error(result)
+                results[i] = None
+        return results
+
+    def parse_docs(self, texts, timeout=PARSEDOC_TIMEOUT_SEC, max_in_flight=100):
+        """Parses a list of documents, keeping up to max_in_flight of them
+        pipelined at the server, so a multi-threaded server (threads > 1) can
+        work on several at once.  Results are returned in the same order as
+        the texts.  Works in every comm_mode.
+        Documents the server is too busy to queue are sent again a little
+        later; documents that fail are None."""
+        self.ensure_proc_is_running()
+        send, read = self.frame_channel(timeout)
+        # request IDs are base + the index into texts
+        base = 0
+        if self.comm_mode == 'SHM':
+            # the rings carry sequence numbers from send_command() too
+            base = self.shm.next_seq
+            self.shm.next_seq += len(texts)
+        results = [None] * len(texts)
+        to_send = range(len(texts))[::-1]
+        num_in_flight = 0
+        num_received = 0
+        try:
+            while num_received < len(texts):
+                while to_send and num_in_flight < max_in_flight:
+                    i = to_send.pop()
+                    send("%d\tPARSEDOC\t%s\n" % (base + i, json.dumps(texts[i])))
+                    num_in_flight += 1
+                request_id, size = struct.unpack('>QQ', read(16))
+                request_id -= base
+                data = read_frame_body(read, size)
+                if not 0 <= request_id < len(texts):
+                    LOG.info("Skipping stale response %d" % (request_id + base))
+                    continue
+                num_in_flight -= 1
+                result = decode_result(data)
+                error = error_of(result)
+                if error and error['error'] == 'busy':
+                    to_send.append(request_id)
+                    time.sleep(BUSY_RETRY_SEC)
+                    continue
+                if error:
+                    log_error(error)
+                    result = None
+                results[request_id] = result
+                num_received += 1
+        except (socket.error, socket.timeout):
+            # responses for the rest may still arrive, so the connection is unusable.
+            self.close_socket()
+            raise
+        return results
+
+    def frame_channel(self, timeout):
+        """(send, read) functions for talking to the server in any comm_mode:
+        send(line) writes a command line, read(n) returns exactly n bytes of
+        response."""
+        if self.uses_socket():
+            sock = self.get_socket(num_retries=100)
+            sock.settimeout(timeout)
+            return sock.sendall, lambda n: recv_exactly(sock, n)
+        if self.comm_mode == 'SHM':
+            return (lambda line: self.shm.write(self.shm.requests, line, self.proc),
+                    lambda n: self.shm.read(self.shm.responses, n, self.proc))
+        def send(line):
+            self.proc.stdin.write(line)
+            self.proc.stdin.flush()
+        return send, self.outpipe_fp.read
 
     def get_socket(self, num_retries=1, retry_interval=1):
-        # could be smarter here about reusing the same socket?
+        """Returns the persistent connection to the server, connecting if
+        there isn't one yet.  The server keeps reading commands off a
+        connection until we close it."""
+        if self.sock is not None:
+            return self.sock
         for trial in range(num_retries):
             try:
-                sock = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
-                # sock.setsockopt(socket.SOL_SOCKET, socket.SO_REUSEADDR, 1) # not sure if this is needed?
-                sock.connect(('localhost', self.server_port))
+                if self.comm_mode == 'UNIX':
+                    sock = socket.socket(socket.AF_UNIX, socket.SOCK_STREAM)
+                    sock.connect(self.unixsocket)
+                else:
+                    sock = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
+                    # sock.setsockopt(socket.SOL_SOCKET, socket.SO_REUSEADDR, 1) # not sure if this is needed?
+                    sock.connect(('localhost', self.server_port))
+                if self.connection_options():
+                    # options are per connection, so every new one needs them
+                    sock.sendall("SETOPTS\t%s\n" % json.dumps(self.connection_options()))
+                    recv_exactly(sock, struct.unpack('>Q', recv_exactly(sock, 8))[0])
+                self.sock = sock
                 return sock
             except (socket.error, socket.timeout) as e:
                 LOG.info("socket error when making connection (%s)" % e)
@@ -236,6 +529,34 @@ class CoreNLP:
                     time.sleep(retry_interval)
         assert False, "couldnt connect socket"
 
+    def connection_options(self):
+        """Settings to send the server with SETOPTS; only non-defaults."""
+        opts = {}
+        if self.chunked:
+            opts['chunked'] = True
+        if self.compression:
+            opts['compression'] = self.compression
+        if self.output_format != 'json':
+            opts['format'] = self.output_format
+        if self.layout != 'rows':
+            opts['layout'] = self.layout
+        if self.typed_offsets:
+            opts['typed_offsets'] = True
+        return opts
+
+    def uses_socket(self):
+        return self.comm_mode in ('SOCKET', 'UNIX')
+
+    def close_socket(self):
+        # After a timeout or error the connection may still have a half-read
+        # response on it, so it can't be reused.
+        if self.sock is not None:
+            try:
+                self.sock.close()
+            except socket.error:
+                pass
+            self.sock = None
+
     def send_command_and_parse_result(self, cmd, timeout, raw=False):
         try:
             self.ensure_proc_is_running()
@@ -245,14 +566,18 @@ class CoreNLP:
             if raw:
                 return data
             try:
-                decoded = json.loads(data)
+                decoded = decode_result(data)
             except ValueError:
                 LOG.warning("Bad JSON returned from subprocess; returning null.")
                 LOG.warning("Bad JSON length %d, starts with: %s" % (len(data), repr(data[:1000])))
                 return None
+            if error_of(decoded):
+                log_error(decoded)
+                return None
             return decoded
         except socket.timeout, e:
             LOG.info("Socket timeout happened, returning None: %s %s" % (type(e), e))
+            self.close_socket()
             return None
             # This is tricky. maybe the process is running smoothly but just
             # taking longer than we like.  if it's in thie state, and we try to
@@ -260,11 +585,17 @@ class CoreNLP:
             # the process now just in case?
 
     def send_command_and_get_string_result(self, cmd, timeout):
-        if self.comm_mode == 'SOCKET':
+        if self.comm_mode == 'SHM':
+            return self.shm.send_command(cmd, timeout, self.proc)
+        if self.uses_socket():
             sock = self.get_socket(num_retries=100)
             sock.settimeout(timeout)
             sock.sendall(cmd + "\n")
             size_info_str = sock.recv(8)
+            if len(size_info_str) < 8:
+                # server closed the connection, e.g. it was restarted.
+                self.close_socket()
+                raise socket.error("connection closed by server")
         elif self.comm_mode == 'PIPE':
             self.proc.stdin.write(cmd + "\n")
             self.proc.stdin.flush()
@@ -274,12 +605,17 @@ class CoreNLP:
         # java default byte ordering is big-endian.
         size_info = struct.unpack('>Q', size_info_str)[0]
         # print "size expected", size_info
+        if size_info >= DEFLATED_FLAG:
+            # chunked and/or compressed
+            if self.uses_socket():
+                return read_frame_body(lambda n: recv_exactly(sock, n), size_info)
+            return read_frame_body(self.outpipe_fp.read, size_info)
 
         chunks = []
         curlen = lambda: sum(len(x) for x in chunks)
         while True:
             remaining_size = size_info - curlen()
-            if self.comm_mode == 'SOCKET':
+            if self.uses_socket():
                 data = sock.recv(remaining_size)
             elif self.comm_mode == 'PIPE':
                 data = self.outpipe_fp.read(remaining_size)
@@ -287,39 +623,320 @@ class CoreNLP:
             if curlen() >= size_info: break
             if len(chunks) > 1000:
                 LOG.warning("Incomplete value from server")
+                self.close_socket()
                 return None
             time.sleep(0.01)
         return ''.join(chunks)
 
 
+class SharedMemoryRings(object):
+    """Client side of the java server's --shm transport: a request ring and
+    a response ring in one memory-mapped file, which we create.  See
+    SharedMemoryRing.java for the layout.  Each command is tagged with a
+    sequence number that the server echoes back in its response frame, so a
+    response to a command that already timed out can be recognized and
+    skipped.
+
+    Python has no memory fences, so this side counts on the processor
+    keeping stores in order and loads in order, which x86 does and e.g. ARM
+    doesn't; elsewhere this raises ValueError, and PIPE mode is the one to
+    use."""
+
+    HEAD, TAIL, DATA, FILE_HEADER = 0, 64, 128, 64
+    CLIENT_PID, CLOSED = 16, 24
+    X86_MACHINES = ('x86_64', 'amd64', 'i386', 'i486', 'i586', 'i686', 'x86')
+
+    def __init__(self, filename, request_capacity, response_capacity):
+        if platform.machine().lower() not in self.X86_MACHINES:
+            raise ValueError("comm_mode='SHM' only works on x86, not %s; "
+                "use comm_mode='PIPE'" % platform.machine())
+        size = self.FILE_HEADER + 2*self.DATA + request_capacity + response_capacity
+        with open(filename, 'wb') as fp:
+            fp.truncate(size)
+        self.fp = open(filename, 'r+b')
+        self.mm = mmap.mmap(self.fp.fileno(), size)
+        struct.pack_into('>QQ', self.mm, 0, request_capacity, response_capacity)
+        # the server watches for this process going away, or the closed flag
+        struct.pack_into('>QQ', self.mm, self.CLIENT_PID, os.getpid(), 0)
+        self.requests = (self.FILE_HEADER, request_capacity)
+        self.responses = (self.FILE_HEADER + self.DATA + request_capacity, response_capacity)
+        self.next_seq = 0
+
+    def close(self):
+        # tells a server still waiting on the rings to finish up and exit
+        struct.pack_into('>Q', self.mm, self.CLOSED, 1)
+        self.mm.close()
+        self.fp.close()
+
+    def send_command(self, cmd, timeout, proc):
+        seq = self.next_seq
+        self.next_seq += 1
+        self.write(self.requests, "%d\t%s\n" % (seq, cmd), proc)
+        deadline = time.time() + timeout
+        while True:
+            self.wait_for_data(self.responses, deadline, proc)
+            resp_seq, size = struct.unpack('>QQ', self.read(self.responses, 16, proc))
+            data = read_frame_body(lambda n: self.read(self.responses, n, proc), size)
+            if resp_seq == seq:
+                return data
+            LOG.info("Skipping stale response %d" % resp_seq)
+
+    def counters(self, ring):
+        base = ring[0]
+        return (struct.unpack_from('>Q', self.mm, base + self.HEAD)[0],
+                struct.unpack_from('>Q', self.mm, base + self.TAIL)[0])
+
+    def idle(self, spins, proc):
+        if spins < 1000:
+            return
+        if spins % 1000 == 0 and proc.poll() is not None:
+            raise SubprocessCrashed("java server exited with code %s" % proc.returncode)
+        time.sleep(0.0001 if spins < 20000 else 0.001)
+
+    def wait_for_data(self, ring, deadline, proc):
+        # the timeout only applies before a frame starts; once the server has
+        # begun writing one we read all of it, so the ring stays in sync.
+        spins = 0
+        while True:
+            head, tail = self.counters(ring)
+            if head > tail:
+                return
+            if time.time() > deadline:
+                raise socket.timeout("no response from shared memory ring")
+            self.idle(spins, proc)
+            spins += 1
+
+    def write(self, ring, data, proc):
+        base, capacity = ring
+        start = base + self.DATA
+        spins = 0
+        while data:
+            head, tail = self.counters(ring)
+            free = capacity - (head - tail)
+            if free == 0:
+                self.idle(spins, proc)
+                spins += 1
+                continue
+            spins = 0
+            offset = head % capacity
+            n = min(len(data), free, capacity - offset)
+            self.mm[start + offset : start + offset + n] = data[:n]
+            data = data[n:]
+            struct.pack_into('>Q', self.mm, base + self.HEAD, head + n)
+
+    def read(self, ring, size, proc):
+        # each slice of the mapping is a copy into a new string; what this saves
+        # over the fifo is the system calls, not the copying.
+        base, capacity = ring
+        start = base + self.DATA
+        chunks = []
+        spins = 0
+        while size > 0:
+            head, tail = self.counters(ring)
+            if head == tail:
+                self.idle(spins, proc)
+                spins += 1
+                continue
+            spins = 0
+            offset = tail % capacity
+            n = min(size, head - tail, capacity - offset)
+            chunks.append(self.mm[start + offset : start + offset + n])
+            size -= n
+            struct.pack_into('>Q', self.mm, base + self.TAIL, tail + n)
+        return chunks[0] if len(chunks) == 1 else ''.join(chunks)
+
+
+def pipeline_settings(annotators, properties, output_format=None,
+        layout=None, typed_offsets=None):
+    """The per-request pipeline fields of a PARSEDOC or PARSEDOCS payload."""
+    settings = {}
+    if annotators is not None:
+        settings['annotators'] = annotators
+    if properties:
+        settings['properties'] = dict((k, str(v)) for k, v in properties.items())
+    if output_format is not None:
+        settings['format'] = output_format
+    if layout is not None:
+        settings['layout'] = layout
+    if typed_offsets is not None:
+        settings['typed_offsets'] = typed_offsets
+    return settings
+
+def decode_result(data):
+    """A response body, JSON or Smile (which starts with SMILE_HEADER)."""
+    if data.startswith(SMILE_HEADER):
+        import pysmile
+        return pysmile.decode(data)
+    return json.loads(data)
+
+def offsets_of(column):
+    """A sentence_offsets, char_begin or char_end column as a list of ints,
+    whether or not it came as typed_offsets."""
+    if isinstance(column, list):
+        return column
+    if isinstance(column, unicode):
+        column = column.decode('base64')
+    return list(struct.unpack('<%di' % (len(column) // 4), column))
+
+def split_columns(doc):
+    """A result in the 'columnar' layout, in the default 'rows' layout."""
+    offsets = offsets_of(doc['sentence_offsets'])
+    sentences = [{} for _ in offsets[1:]]
+    for key, column in doc.items():
+        if key in ('sentence_offsets', 'entitymentions', 'entities', 'char_end'):
+            continue
+        if key == 'char_begin':
+            begin, end = column, doc['char_end']
+            column = [list(pair) for pair in zip(offsets_of(begin), offsets_of(end))]
+            key = 'char_offsets'
+        if key in ('deps_cc', 'deps_basic'):
+            for s in sentences:
+                s[key] = []
+            for i, rel, gov, dep in zip(column['sentence'], column['rel'],
+                    column['gov'], column['dep']):
+                sentences[i][key].append([rel, gov, dep])
+        elif key == 'parse':
+            for s, parse in zip(sentences, column):
+                s[key] = parse
+        else:
+            for i, s in enumerate(sentences):
+                s[key] = column[offsets[i]:offsets[i+1]]
+    if 'entitymentions' in doc:
+        for s in sentences:
+            s['entitymentions'] = []
+        for mention in doc['entitymentions']:
+            sentences[mention['sentence']]['entitymentions'].append(mention)
+    ret = {'sentences': sentences}
+    if 'entities' in doc:
+        ret['entities'] = doc['entities']
+    return ret
+
+def error_of(result):
+    """The server's error response if `result` is one, else None.  It's a dict
+    with 'error' (the type: bad_request, annotator_failed, timeout,
+    out_of_memory, internal, busy, or draining), 'message', and 'retryable',
+    which says whether sending the same thing again might work.  Failed
+    annotations also say which 'annotator'.  The parse_* methods log these
+    and return None in place of the result; raw=True hands back the JSON as
+    is."""
+    if isinstance(result, dict) and 'error' in result:
+        return result
+    return None
+
+def log_error(error):
+    LOG.warning("Server error %s (%s)%s: %s; returning None" % (
+        error['error'],
+        "retryable" if error.get('retryable') else "not retryable",
+        " in annotator %s" % error['annotator'] if error.get('annotator') else "",
+        error.get('message')))
+
+def read_frame_body(read, size):
+    """Reads a response body, given the frame's length field and a function
+    that reads exactly n bytes.  A chunked body is a series of 4-byte
+    lengths, each followed by that many bytes, ending with a zero length.
+    Compressed bodies come back decompressed."""
+    if size not in (CHUNKED_FRAME, CHUNKED_DEFLATED_FRAME):
+        if size & DEFLATED_FLAG:
+            return zlib.decompress(read(size & ~DEFLATED_FLAG))
+        return read(size)
+    chunks = []
+    while True:
+        n = struct.unpack('>I', read(4))[0]
+        if n == 0:
+            break
+        chunks.append(read(n))
+    if size == CHUNKED_DEFLATED_FRAME:
+        decompressor = zlib.decompressobj()
+        return ''.join(decompressor.decompress(c) for c in chunks) + decompressor.flush()
+    return ''.join(chunks)
+
+
+def recv_exactly(sock, size):
+    chunks = []
+    remaining = size
+    while remaining > 0:
+        data = sock.recv(remaining)
+        if not data:
+            raise socket.error("connection closed by server")
+        chunks.append(data)
+        remaining -= len(data)
+    return ''.join(chunks)
+
+
 def test_modes():
     import pytest
     gosimple(comm_mode='SOCKET')
+    gosimple(comm_mode='UNIX')
     gosimple(comm_mode='PIPE')
+    if platform.machine().lower() in SharedMemoryRings.X86_MACHINES:
+        gosimple(comm_mode='SHM')
     with pytest.raises(AssertionError):
         gosimple(comm_mode=None)
     with pytest.raises(AssertionError):
         gosimple(comm_mode='asdfasdf')
 
 def test_coref():
-    assert_no_java("no java when starting")
-    p = CoreNLP("coref")
-    ret = p.parse_doc("I saw Fred. He saw me.")
-    pprint(ret)
-    assert 'entities' in ret
-    assert isinstance(ret['entities'], list)
+    with running("coref") as p:
+        ret = p.parse_doc("I saw Fred. He saw me.")
+        pprint(ret)
+        assert 'entities' in ret
+        assert isinstance(ret['entities'], list)
 
-def gosimple(**kwargs):
-    assert_no_java("no java when starting")
+def test_batch():
+    with running("ssplit") as p:
+        ret = p.parse_doc_batch(["Hello world.", "Hi there. How are you?"])
+        assert len(ret) == 2
+        assert len(ret[0]['sentences']) == 1
+        assert len(ret[1]['sentences']) == 2
 
-    p = CoreNLP("ssplit", **kwargs)
-    ret = p.parse_doc("Hello world.")
-    # pprint(ret)
-    assert len(ret['sentences']) == 1
-    assert u' '.join(ret['sentences'][0]['tokens']) == u"Hello world ."
+def test_per_request_annotators():
+    with running("ssplit") as p:
+        ret = p.parse_doc("Hello world.", annotators="tokenize, ssplit, pos")
+        assert ret['sentences'][0]['pos'] == ['UH', 'NN', '.']
+        ret = p.parse_doc("Hello world.")
+        assert 'pos' not in ret['sentences'][0]
 
-    p.kill_proc_if_running()
-    assert_no_java()
+def test_incremental():
+    with running("ssplit") as p:
+        text = "Hello world. Hi there."
+        first = p.parse_doc(text)
+        ret = p.parse_doc(text, annotators="tokenize, ssplit, pos", previous=first)
+        assert [s['tokens'] for s in ret['sentences']] == [s['tokens'] for s in first['sentences']]
+        assert ret['sentences'][0]['pos'] == ['UH', 'NN', '.']
+
+def test_smile():
+    import pytest
+    pytest.importorskip('pysmile')
+    with running("pos", comm_mode='SOCKET', output_format='smile') as p:
+        text = "Hello world. Hi there."
+        ret = p.parse_doc(text)
+        assert p.parse_doc(text, raw=True).startswith(SMILE_HEADER)
+        assert ret == p.parse_doc(text, output_format='json')
+        assert ret['sentences'][0]['pos'] == ['UH', 'NN', '.']
+        assert len(p.parse_doc_batch([text, "Hello."])) == 2
+
+def test_columnar():
+    with running("parse", comm_mode='SOCKET', layout='columnar') as p:
+        text = "Hello world. Hi there."
+        ret = p.parse_doc(text)
+        assert ret['sentence_offsets'] == [0, 3, 6]
+        assert ret['pos'][:3] == ['UH', 'NN', '.']
+        assert split_columns(ret) == p.parse_doc(text, layout='rows')
+        typed = p.parse_doc(text, typed_offsets=True)
+        assert split_columns(typed) == split_columns(ret)
+
+def test_pipelined_pipe():
+    with running("ssplit", comm_mode='PIPE', threads=2) as p:
+        texts = ["Hello world.", "Hi there. How are you?"] * 10
+        ret = p.parse_docs(texts)
+        assert [len(r['sentences']) for r in ret] == [1, 2] * 10
+
+def gosimple(**kwargs):
+    with running("ssplit", **kwargs) as p:
+        ret = p.parse_doc("Hello world.")
+        # pprint(ret)
+        assert len(ret['sentences']) == 1
+        assert u' '.join(ret['sentences'][0]['tokens']) == u"Hello world ."
 
 def test_paths():
     import pytest
@@ -332,14 +949,73 @@ def assert_no_java(msg=""):
     print ''.join(javalines)
     assert len(javalines) == 0, msg
 
-# def test_doctimeout():
-#     assert_no_java("no java when starting")
-#
-#     p = CoreNLP("pos")
-#     ret = p.parse_doc(open("allbrown.txt").read(), 0.5)
-#     assert ret is None
-#     p.kill_proc_if_running()
-#     assert_no_java()
+@contextlib.contextmanager
+def running(*args, **kwargs):
+    """A CoreNLP(*args, **kwargs) for a test, which makes sure no java
+    server was left running before it starts, and stops it after."""
+    assert_no_java("no java when starting")
+    p = CoreNLP(*args, **kwargs)
+    try:
+        yield p
+    finally:
+        p.kill_proc_if_running()
+    assert_no_java()
+
+def test_doctimeout():
+    # pos stops between slices of sentences; parse gets interrupted inside a
+    # sentence, and must still come back as a timeout, not a flat tree.
+    for mode, field, expected in (('pos', 'pos', ['UH', 'NN', '.']),
+            ('parse', 'parse', None)):
+        with running(mode, comm_mode='SOCKET') as p:
+            text = "The quick brown fox jumped over the lazy dog. " * 20000
+            start = time.time()
+            error = error_of(decode_result(p.parse_doc(text, 0.5, raw=True)))
+            # the server gave up, well before the client would have
+            assert error['error'] == 'timeout'
+            assert not error['retryable']
+            assert time.time() - start < 0.5 + SERVER_TIMEOUT_GRACE_SEC
+            # and the worker is free for the next one
+            ret = p.parse_doc("Hello world.")
+            if expected:
+                assert ret['sentences'][0][field] == expected
+            else:
+                assert ret['sentences'][0][field].startswith('(ROOT')
+
+def test_compression():
+    text = "Hello world. Hi there. How are you? " * 500
+    with running("ssplit", comm_mode='SOCKET') as plain:
+        expected = plain.parse_doc(text)
+    for chunked in (False, True):
+        with running("ssplit", comm_mode='SOCKET', chunked=chunked,
+                compression='deflate') as p:
+            assert p.parse_doc(text) == expected
+            assert p.parse_doc("Hello.")['sentences'][0]['tokens'] == ['Hello', '.']
+            assert len(p.parse_doc_batch([text, text])) == 2
+
+def test_drain():
+    with running("ssplit", comm_mode='SOCKET', threads=2) as p:
+        p.parse_doc("Hello world.")
+        send, read = p.frame_channel(PARSEDOC_TIMEOUT_SEC)
+        for i in range(20):
+            send("%d\tPARSEDOC\t%s\n" % (i, json.dumps("Hello world. " * 100)))
+        sock = socket.create_connection(('localhost', p.server_port))
+        sock.sendall("DRAIN\t{}\n")
+        size = struct.unpack('>Q', recv_exactly(sock, 8))[0]
+        assert decode_result(recv_exactly(sock, size))['draining']
+        # every command the server had taken in is answered; the rest are
+        # turned away, but none are dropped
+        answered = set()
+        for i in range(20):
+            request_id, size = struct.unpack('>QQ', read(16))
+            result = decode_result(read_frame_body(read, size))
+            error = error_of(result)
+            assert error is None or error['error'] == 'draining'
+            answered.add(request_id)
+        assert answered == set(range(20))
+        deadline = time.time() + SHUTDOWN_TIMEOUT_SEC
+        while p.proc.poll() is None and time.time() < deadline:
+            time.sleep(0.05)
+        assert p.proc.returncode == 0
 
 if __name__=='__main__':
     import sys